@@ -1,311 +1,5775 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.InputMismatchException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
-class Room {
-    public enum RoomClass {
+// A room of the hotel. Rooms are held as rows of a RoomStore and a Room is a view of one row, made when it is needed and
+// holding no room data itself, so a hotel costs no objects per room. Two views of the same row are equal
+interface Room {
+    enum RoomClass {
         SUPERIOR,
         DELUXE,
         STANDARD
     }
 
-    public enum BedType {
+    enum BedType {
         TWIN,
         DOUBLE,
         QUEEN_SIZE,
         KING_SIZE
     }
-    
-    private int roomNumber;
-    private RoomClass roomClass; 
-    private BedType bedType; 
-    private int rate;
-    private boolean isAvailable;
-    
-    public Room(int roomNumber, RoomClass roomClass, int rate) {
-        this.roomNumber = roomNumber;
-        this.roomClass = roomClass;
-        this.bedType = null;
-        this.rate = rate;
-        this.isAvailable = true;
+
+    // Bed set-ups a room of the class offers unless its layout says otherwise
+    static int defaultBeds(RoomClass roomClass) {
+        switch (roomClass) {
+            case STANDARD:
+                return bedMask(BedType.TWIN, BedType.DOUBLE);
+            case DELUXE:
+                return bedMask(BedType.QUEEN_SIZE);
+            default:
+                return bedMask(BedType.QUEEN_SIZE, BedType.KING_SIZE);
+        }
     }
-    
+
+    static int bedMask(BedType... bedTypes) {
+        int mask = 0;
+        for (BedType bedType : bedTypes) {
+            mask |= 1 << bedType.ordinal();
+        }
+        return mask;
+    }
+
+    int getRoomNumber();
+
+    RoomClass getRoomClass();
+
+    BedType getBedType();
+
+    int getRate();
+
+    boolean isAvailable();
+
+    int getAllowedBeds(); // bit per BedType ordinal
+
+    default boolean allowsBedType(BedType bedType) {
+        return (getAllowedBeds() & 1 << bedType.ordinal()) != 0;
+    }
+
+    void setAvailable(boolean isAvailable);
+
+    void setBedType(BedType bedType);
+}
+
+// Room inventory held in primitive columns (room number, rate, and a packed class/allowed-beds word) inside one
+// memory-mapped file, so a large hotel loads by mapping the file instead of building a Room object per room.
+// The file is only written while the store is built; a saved store is mapped read-only. What changes as stays come
+// and go, a room's availability and bed set-up, is kept in a heap array of one byte per room, accessed with volatile
+// semantics so a view read outside the class lock sees the latest state. StoredRoom views read both directly
+class RoomStore {
+    private static final int MAGIC = 0x524D5332; // "RMS2"
+    private static final int HEADER_BYTES = 12; // magic, capacity, size
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle STATES = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final int ALLOWED_BEDS_SHIFT = 8; // in the flags word, above the room class ordinal
+    private static final int TAKEN = 0x80; // in a state byte, whose low bits are the bed type ordinal + 1, or 0 for none
+    private static final Room.RoomClass[] ROOM_CLASSES = Room.RoomClass.values();
+    private static final Room.BedType[] BED_TYPES = Room.BedType.values();
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private int size;
+    private final byte[] states; // 0 for every room at first: available, no bed set up
+    // Room number -> index + 1 by open addressing, 0 for an empty bucket; built on the first lookup after the last add
+    private volatile int[] lookup;
+
+    private RoomStore(ByteBuffer buffer, int capacity, int size) {
+        this.buffer = buffer.order(ByteOrder.nativeOrder());
+        this.capacity = capacity;
+        this.size = size;
+        this.states = new byte[capacity];
+    }
+
+    // Creates a file-backed store holding a copy of the rooms of another store
+    public static RoomStore create(Path file, RoomStore rooms) throws IOException {
+        RoomStore store = create(file, rooms.size());
+        for (int i = 0; i < rooms.size(); i++) {
+            store.add(rooms.roomNumber(i), rooms.roomClass(i), rooms.rate(i), rooms.allowedBeds(i));
+        }
+        return store;
+    }
+
+    // Creates an empty file-backed store with room for capacity rooms
+    public static RoomStore create(Path file, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            RoomStore store = new RoomStore(channel.map(FileChannel.MapMode.READ_WRITE, 0, bytesFor(capacity)), capacity, 0);
+            store.buffer.putInt(0, MAGIC);
+            store.buffer.putInt(4, capacity);
+            return store;
+        }
+    }
+
+    // Maps an existing store file read-only; the mapping stays valid after the channel is closed. No rooms can be added
+    public static RoomStore open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("Not a room store: " + file);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.nativeOrder());
+            int capacity = buffer.getInt(4);
+            int size = buffer.getInt(8);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a room store: " + file);
+            }
+            if (capacity < 0 || size < 0 || size > capacity || capacity > (Integer.MAX_VALUE - HEADER_BYTES) / (3 * Integer.BYTES)
+                || channel.size() < bytesFor(capacity)) {
+                throw new IOException("Truncated room store: " + file);
+            }
+            return new RoomStore(buffer, capacity, size);
+        }
+    }
+
+    // Creates an off-heap store that is not backed by a file
+    public static RoomStore allocate(int capacity) {
+        RoomStore store = new RoomStore(ByteBuffer.allocateDirect(bytesFor(capacity)), capacity, 0);
+        store.buffer.putInt(0, MAGIC);
+        store.buffer.putInt(4, capacity);
+        return store;
+    }
+
+    private static int bytesFor(int capacity) {
+        return HEADER_BYTES + capacity * 3 * Integer.BYTES;
+    }
+
+    public int add(int roomNumber, Room.RoomClass roomClass, int rate) {
+        return add(roomNumber, roomClass, rate, Room.defaultBeds(roomClass));
+    }
+
+    public int add(int roomNumber, Room.RoomClass roomClass, int rate, int allowedBeds) {
+        if (buffer.isReadOnly()) {
+            throw new IllegalStateException("Room store was opened read-only");
+        }
+        if (size == capacity) {
+            throw new IllegalStateException("Room store is full (" + capacity + " rooms)");
+        }
+        if (allowedBeds == 0) {
+            throw new IllegalArgumentException("Room " + roomNumber + " allows no bed type");
+        }
+        int index = size++;
+        buffer.putInt(numberOffset(index), roomNumber);
+        buffer.putInt(rateOffset(index), rate);
+        INTS.setVolatile(buffer, flagsOffset(index), allowedBeds << ALLOWED_BEDS_SHIFT | roomClass.ordinal());
+        buffer.putInt(8, size);
+        lookup = null;
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // A new view of the room at the index; views are cheap and are not kept
+    public Room view(int index) {
+        return new StoredRoom(this, index);
+    }
+
+    // Index of the room with the number, or -1 if there is none
+    public int indexOf(int roomNumber) {
+        int[] table = lookup;
+        if (table == null) {
+            table = buildLookup();
+        }
+        int mask = table.length - 1;
+        for (int bucket = bucket(roomNumber, mask); table[bucket] != 0; bucket = (bucket + 1) & mask) {
+            if (roomNumber(table[bucket] - 1) == roomNumber) {
+                return table[bucket] - 1;
+            }
+        }
+        return -1;
+    }
+
+    // At most half full, so probe runs stay short; 8 bytes per room
+    private synchronized int[] buildLookup() {
+        if (lookup != null) {
+            return lookup;
+        }
+        int[] table = new int[Math.max(2, Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1)];
+        int mask = table.length - 1;
+        for (int index = 0; index < size; index++) {
+            int bucket = bucket(roomNumber(index), mask);
+            while (table[bucket] != 0) {
+                bucket = (bucket + 1) & mask;
+            }
+            table[bucket] = index + 1;
+        }
+        lookup = table;
+        return table;
+    }
+
+    private static int bucket(int roomNumber, int mask) {
+        int hash = roomNumber * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & mask;
+    }
+
+    int roomNumber(int index) {
+        return buffer.getInt(numberOffset(index));
+    }
+
+    int rate(int index) {
+        return buffer.getInt(rateOffset(index));
+    }
+
+    Room.RoomClass roomClass(int index) {
+        return ROOM_CLASSES[flags(index) & 0xFF];
+    }
+
+    Room.BedType bedType(int index) {
+        int bed = state(index) & ~TAKEN;
+        return bed == 0 ? null : BED_TYPES[bed - 1];
+    }
+
+    boolean isAvailable(int index) {
+        return (state(index) & TAKEN) == 0;
+    }
+
+    int allowedBeds(int index) {
+        return flags(index) >>> ALLOWED_BEDS_SHIFT;
+    }
+
+    // Writers hold the room's class lock, so a read-modify-write of the state byte cannot race another writer
+    void setBedType(int index, Room.BedType bedType) {
+        int taken = state(index) & TAKEN;
+        STATES.setVolatile(states, index, (byte) (taken | (bedType == null ? 0 : bedType.ordinal() + 1)));
+    }
+
+    void setAvailable(int index, boolean available) {
+        int state = state(index);
+        STATES.setVolatile(states, index, (byte) (available ? state & ~TAKEN : state | TAKEN));
+    }
+
+    // Marks every room available with no bed set up, as a newly built store starts; only while setting up a hotel
+    void resetStates() {
+        Arrays.fill(states, (byte) 0);
+    }
+
+    private int state(int index) {
+        return (byte) STATES.getVolatile(states, index) & 0xFF;
+    }
+
+    private int flags(int index) {
+        return (int) INTS.getVolatile(buffer, flagsOffset(index));
+    }
+
+    private int numberOffset(int index) {
+        return HEADER_BYTES + index * Integer.BYTES;
+    }
+
+    private int rateOffset(int index) {
+        return HEADER_BYTES + (capacity + index) * Integer.BYTES;
+    }
+
+    private int flagsOffset(int index) {
+        return HEADER_BYTES + (2 * capacity + index) * Integer.BYTES;
+    }
+}
+
+// Room view over one row of a RoomStore; holds no room data itself
+class StoredRoom implements Room {
+    private final RoomStore store;
+    private final int index;
+
+    StoredRoom(RoomStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    @Override
     public int getRoomNumber() {
-        return roomNumber;
+        return store.roomNumber(index);
     }
 
+    @Override
     public RoomClass getRoomClass() {
-        return roomClass;
+        return store.roomClass(index);
+    }
+
+    @Override
+    public BedType getBedType() {
+        return store.bedType(index);
+    }
+
+    @Override
+    public int getRate() {
+        return store.rate(index);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return store.isAvailable(index);
+    }
+
+    @Override
+    public int getAllowedBeds() {
+        return store.allowedBeds(index);
+    }
+
+    @Override
+    public void setAvailable(boolean isAvailable) {
+        store.setAvailable(index, isAvailable);
+    }
+
+    @Override
+    public void setBedType(BedType bedType) {
+        store.setBedType(index, bedType);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof StoredRoom && ((StoredRoom) other).store == store && ((StoredRoom) other).index == index;
+    }
+
+    @Override
+    public int hashCode() {
+        return index;
+    }
+}
+
+// Room layout of one property, read from a compact definition file. Each line is a range of rooms:
+//   rooms <first>-<last> <CLASS> <rate> [<BED>,<BED>...]
+//   floors <first>-<last> x <first>-<last> <CLASS> <rate> [<BED>,<BED>...]
+// A floors line numbers rooms floor * 100 + room (floor * 1000 + room when a floor has room numbers of 100 or more).
+// Without a bed list, rooms offer the default bed types of their class. Blank lines and lines starting with # are skipped.
+// The parsed rooms are cached next to the file as a memory-mapped RoomStore, so later starts map the cache instead of parsing
+class HotelLayout {
+    static final String DEFAULT =
+        "rooms 1-250 STANDARD 1000 TWIN,DOUBLE\n"
+        + "rooms 251-500 DELUXE 1200 QUEEN_SIZE\n"
+        + "rooms 501-530 SUPERIOR 1800 QUEEN_SIZE,KING_SIZE\n";
+
+    // One line of a layout: rooms numbered floor * floorMultiplier + room for every floor and room in the ranges
+    private static class RoomRange {
+        int firstFloor;
+        int lastFloor;
+        int floorMultiplier; // 0 for a plain rooms line
+        int firstRoom;
+        int lastRoom;
+        Room.RoomClass roomClass;
+        int rate;
+        int allowedBeds;
+
+        long size() {
+            return (long) (lastFloor - firstFloor + 1) * (lastRoom - firstRoom + 1);
+        }
+    }
+
+    // Parses layout text into a store; the store is file-backed when a file is given and off-heap otherwise
+    public static RoomStore parse(String text, Path storeFile) throws IOException {
+        List<RoomRange> ranges = new ArrayList<>();
+        long total = 0;
+        int lineNumber = 0;
+        for (String line : text.split("\n")) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            try {
+                RoomRange range = parseLine(trimmed);
+                ranges.add(range);
+                total += range.size();
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Layout line " + lineNumber + ": " + e.getMessage() + ": " + trimmed, e);
+            }
+        }
+        if (total > Integer.MAX_VALUE / (3 * Integer.BYTES)) {
+            throw new IllegalArgumentException("Layout has too many rooms: " + total);
+        }
+        RoomStore store = storeFile == null ? RoomStore.allocate((int) total) : RoomStore.create(storeFile, (int) total);
+        Set<Integer> seen = new HashSet<>();
+        for (RoomRange range : ranges) {
+            for (int floor = range.firstFloor; floor <= range.lastFloor; floor++) {
+                for (int room = range.firstRoom; room <= range.lastRoom; room++) {
+                    int roomNumber = floor * range.floorMultiplier + room;
+                    if (!seen.add(roomNumber)) {
+                        throw new IllegalArgumentException("Room " + roomNumber + " is defined more than once");
+                    }
+                    store.add(roomNumber, range.roomClass, range.rate, range.allowedBeds);
+                }
+            }
+        }
+        return store;
+    }
+
+    // Maps the cached store of the layout file, re-parsing the file first if the cache is missing or older than it
+    public static RoomStore load(Path layoutFile) throws IOException {
+        Path cache = layoutFile.resolveSibling(layoutFile.getFileName() + ".rooms");
+        if (Files.exists(cache) && Files.getLastModifiedTime(cache).compareTo(Files.getLastModifiedTime(layoutFile)) >= 0) {
+            try {
+                return RoomStore.open(cache);
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable layout cache " + cache + ": " + e.getMessage());
+            }
+        }
+        // Built under a temporary name so a failed parse never leaves a cache that looks up to date, then mapped
+        // read-only like any later start
+        Path tmp = layoutFile.resolveSibling(layoutFile.getFileName() + ".rooms.tmp");
+        parse(new String(Files.readAllBytes(layoutFile), StandardCharsets.UTF_8), tmp);
+        Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return RoomStore.open(cache);
+    }
+
+    // Loads several layouts at once, one per property, in parallel
+    public static List<RoomStore> loadAll(List<Path> layoutFiles) throws IOException {
+        try {
+            return layoutFiles.parallelStream().map(file -> {
+                try {
+                    return load(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static RoomRange parseLine(String line) {
+        String[] fields = line.split("\\s+");
+        RoomRange range = new RoomRange();
+        int next;
+        if (fields[0].equalsIgnoreCase("rooms") && fields.length >= 4) {
+            int[] rooms = parseRange(fields[1]);
+            range.firstRoom = rooms[0];
+            range.lastRoom = rooms[1];
+            next = 2;
+        } else if (fields[0].equalsIgnoreCase("floors") && fields.length >= 6 && fields[2].equalsIgnoreCase("x")) {
+            int[] floors = parseRange(fields[1]);
+            int[] rooms = parseRange(fields[3]);
+            range.firstFloor = floors[0];
+            range.lastFloor = floors[1];
+            range.firstRoom = rooms[0];
+            range.lastRoom = rooms[1];
+            range.floorMultiplier = rooms[1] < 100 ? 100 : 1000;
+            if (rooms[1] >= 1000) {
+                throw new IllegalArgumentException("at most 999 rooms per floor");
+            }
+            next = 4;
+        } else {
+            throw new IllegalArgumentException("expected 'rooms <first>-<last> <CLASS> <rate> [beds]' or 'floors <first>-<last> x <first>-<last> <CLASS> <rate> [beds]'");
+        }
+        if (fields.length > next + 3) {
+            throw new IllegalArgumentException("too many fields");
+        }
+        range.roomClass = Room.RoomClass.valueOf(fields[next].toUpperCase(Locale.ROOT));
+        range.rate = Integer.parseInt(fields[next + 1]);
+        if (range.rate < 0) {
+            throw new IllegalArgumentException("rate must not be negative");
+        }
+        range.allowedBeds = Room.defaultBeds(range.roomClass);
+        if (fields.length > next + 2) {
+            range.allowedBeds = 0;
+            for (String bed : fields[next + 2].split(",")) {
+                range.allowedBeds |= Room.bedMask(Room.BedType.valueOf(bed.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+        return range;
+    }
+
+    private static int[] parseRange(String text) {
+        int dash = text.indexOf('-');
+        int first = Integer.parseInt(dash < 0 ? text : text.substring(0, dash));
+        int last = dash < 0 ? first : Integer.parseInt(text.substring(dash + 1));
+        if (first < 0 || last < first) {
+            throw new IllegalArgumentException("bad range " + text);
+        }
+        return new int[] {first, last};
+    }
+}
+
+class Guest {
+    private String firstName;
+    private String lastName;
+    private int lengthOfStay;
+    private Room reservedRoom;
+    
+    public Guest(String firstName, String lastName, int lengthOfStay, Room reservedRoom) {
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.lengthOfStay = lengthOfStay;
+        this.reservedRoom = reservedRoom;
+
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public int getLengthOfStay() {
+        return lengthOfStay;
+    }
+
+    public Room getReservedRoom() {
+        return reservedRoom;
+    }
+
+}
+
+// One guest's part of a group booking
+class GuestRequest {
+    private String firstName;
+    private String lastName;
+    private int lengthOfStay;
+    private Room.BedType bedType;
+
+    public GuestRequest(String firstName, String lastName, int lengthOfStay, Room.BedType bedType) {
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.lengthOfStay = lengthOfStay;
+        this.bedType = bedType;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public int getLengthOfStay() {
+        return lengthOfStay;
+    }
+
+    public Room.BedType getBedType() {
+        return bedType;
+    }
+}
+
+class Reservation {
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final long id = NEXT_ID.incrementAndGet(); // Order of entry
+    private Guest guest;
+    private Room room;
+    private Room.BedType bedType;
+    private int rate;
+    private LocalDate checkIn;
+    private LocalDate checkOut;
+
+    public Reservation(Guest guest, Room room) {
+        this(guest, room, LocalDate.now());
+    }
+
+    public Reservation(Guest guest, Room room, LocalDate checkIn) {
+        this(guest, room, checkIn, room.getRate());
+    }
+
+    public Reservation(Guest guest, Room room, LocalDate checkIn, int rate) {
+        this.guest = guest;
+        this.room = room;
+        this.bedType = room.getBedType(); // Keep the bed set up for this stay, the room may be rebooked later
+        this.rate = rate; // Nightly rate agreed at booking
+        this.checkIn = checkIn;
+        this.checkOut = checkIn.plusDays(guest.getLengthOfStay());
+        room.setAvailable(false); // Mark the room as not available
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Guest getGuest() {
+        return guest;
+    }
+
+    public Room getRoom() {
+        return room;
+    }
+
+    public Room.BedType getBedType() {
+        return bedType;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    // Total charge for the stay: the nightly rate times the number of nights
+    public long getRevenue() {
+        return (long) rate * guest.getLengthOfStay();
+    }
+
+    public LocalDate getCheckIn() {
+        return checkIn;
+    }
+
+    public LocalDate getCheckOut() {
+        return checkOut;
+    }
+}
+
+// Index of free rooms per room class, keyed by room number. Each class bitmap must only be changed
+// while holding that class's booking lock; the counts can be read without locking.
+class FreeRoomIndex {
+    private final EnumMap<Room.RoomClass, BitSet> freeRooms = new EnumMap<>(Room.RoomClass.class);
+    private final AtomicIntegerArray freeCounts = new AtomicIntegerArray(Room.RoomClass.values().length);
+    private final AtomicIntegerArray totalCounts = new AtomicIntegerArray(Room.RoomClass.values().length);
+
+    public FreeRoomIndex() {
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            freeRooms.put(roomClass, new BitSet());
+        }
+    }
+
+    // Registers every room of the store as free; only called once, while setting up the hotel
+    public void addRooms(RoomStore rooms) {
+        int[] added = new int[totalCounts.length()];
+        for (int index = 0; index < rooms.size(); index++) {
+            Room.RoomClass roomClass = rooms.roomClass(index);
+            freeRooms.get(roomClass).set(rooms.roomNumber(index));
+            added[roomClass.ordinal()]++;
+        }
+        for (int c = 0; c < added.length; c++) {
+            totalCounts.addAndGet(c, added[c]);
+            freeCounts.addAndGet(c, added[c]);
+        }
+    }
+
+    public void markFree(Room room) {
+        BitSet free = freeRooms.get(room.getRoomClass());
+        if (!free.get(room.getRoomNumber())) {
+            free.set(room.getRoomNumber());
+            freeCounts.incrementAndGet(room.getRoomClass().ordinal());
+        }
+    }
+
+    public void markReserved(Room room) {
+        BitSet free = freeRooms.get(room.getRoomClass());
+        if (free.get(room.getRoomNumber())) {
+            free.clear(room.getRoomNumber());
+            freeCounts.decrementAndGet(room.getRoomClass().ordinal());
+        }
+    }
+
+    // Returns the lowest free room number of the class, or -1 if the class is full
+    public int firstFree(Room.RoomClass roomClass) {
+        return freeRooms.get(roomClass).nextSetBit(0);
+    }
+
+    // Returns a copy of the free room numbers of the class, safe to walk outside the class lock
+    public BitSet snapshot(Room.RoomClass roomClass) {
+        return (BitSet) freeRooms.get(roomClass).clone();
+    }
+
+    public int freeCount(Room.RoomClass roomClass) {
+        return freeCounts.get(roomClass.ordinal());
+    }
+
+    public int totalCount(Room.RoomClass roomClass) {
+        return totalCounts.get(roomClass.ordinal());
+    }
+}
+
+// Chooses which of the rooms free for a stay gets it. Candidates are calendar slots that are free for every night of the
+// stay and can be set up with the bed type; the strategy may modify the set and returns one of its slots, or -1 if empty.
+// Called under the class lock, so it may read the calendar's indexes directly
+interface AllocationStrategy {
+    int choose(InventoryCalendar calendar, Room.RoomClass roomClass, Room.BedType bedType, BitSet candidates);
+
+    // The lowest-numbered candidate, which packs guests onto the first rooms of the class
+    AllocationStrategy FIRST_FREE = (calendar, roomClass, bedType, candidates) -> candidates.nextSetBit(0);
+
+    // A room already set up with the bed type, so it needs no changing over; failing that a room not set up yet, which
+    // leaves rooms set up for other bed types to their guests; the lowest-numbered candidate otherwise
+    AllocationStrategy MATCHING_BED = (calendar, roomClass, bedType, candidates) -> {
+        if (bedType != null) {
+            BitSet matching = (BitSet) candidates.clone();
+            matching.and(calendar.slotsSetUpAs(roomClass, bedType));
+            int slot = matching.nextSetBit(0);
+            if (slot >= 0) {
+                return slot;
+            }
+            BitSet notSetUp = (BitSet) candidates.clone();
+            for (Room.BedType other : Room.BedType.values()) {
+                notSetUp.andNot(calendar.slotsSetUpAs(roomClass, other));
+            }
+            slot = notSetUp.nextSetBit(0);
+            if (slot >= 0) {
+                return slot;
+            }
+        }
+        return candidates.nextSetBit(0);
+    };
+
+    // A candidate in the housekeeping zone with the most rooms free for the stay, so guests spread out across floors;
+    // within the zone, a room already set up with the bed type if there is one. Ties go to the lowest zone
+    AllocationStrategy SPREAD_ZONES = (calendar, roomClass, bedType, candidates) -> {
+        int[] freeByZone = new int[calendar.zoneCount(roomClass)];
+        for (int slot = candidates.nextSetBit(0); slot >= 0; slot = candidates.nextSetBit(slot + 1)) {
+            freeByZone[calendar.zoneOf(roomClass, slot)]++;
+        }
+        int best = -1;
+        for (int zone = 0; zone < freeByZone.length; zone++) {
+            if (freeByZone[zone] > (best < 0 ? 0 : freeByZone[best])) {
+                best = zone;
+            }
+        }
+        if (best < 0) {
+            return -1;
+        }
+        BitSet inZone = new BitSet();
+        for (int slot = candidates.nextSetBit(0); slot >= 0; slot = candidates.nextSetBit(slot + 1)) {
+            if (calendar.zoneOf(roomClass, slot) == best) {
+                inZone.set(slot);
+            }
+        }
+        return MATCHING_BED.choose(calendar, roomClass, bedType, inZone);
+    };
+
+    // first-free, matching-bed or spread-zones
+    static AllocationStrategy forName(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "first-free":
+                return FIRST_FREE;
+            case "matching-bed":
+                return MATCHING_BED;
+            case "spread-zones":
+                return SPREAD_ZONES;
+            default:
+                throw new IllegalArgumentException("Unknown allocation strategy " + name + ", expected first-free, matching-bed or spread-zones");
+        }
+    }
+}
+
+// Forward inventory of free rooms per night over a rolling horizon. Each room class is kept in its own
+// stripe (dense room slots, one bitmap per night) so classes can be booked independently under separate locks.
+class InventoryCalendar {
+    private final int horizon;
+    private final EnumMap<Room.RoomClass, ClassInventory> classes = new EnumMap<>(Room.RoomClass.class);
+    private RoomStore rooms = RoomStore.allocate(0);
+    private int[] slotByIndex = new int[0]; // room store index -> slot within the room's class
+
+    private static class ClassInventory {
+        int[] roomNumbers = new int[0]; // slot -> room number, in the order rooms were added
+        int size;
+        BitSet allSlots = new BitSet();
+        BitSet[] slotsByBed = new BitSet[Room.BedType.values().length]; // rooms that can be set up with each bed type
+        BitSet[] slotsSetUpAs = new BitSet[Room.BedType.values().length]; // rooms currently set up with each bed type
+        int[] zoneBySlot = new int[0]; // housekeeping zone of each room, numbered 0.. in zone order
+        int zoneCount;
+        BitSet[] freeByNight; // null for a night with no room taken, so empty nights cost no bitmap
+        int[] bookedByNight; // rooms taken on each night, kept alongside the bitmaps
+        long firstDay; // epoch day of the first night held in the horizon
+    }
+
+    public InventoryCalendar(LocalDate today, int horizon) {
+        this.horizon = horizon;
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            ClassInventory inventory = new ClassInventory();
+            inventory.freeByNight = new BitSet[horizon];
+            inventory.bookedByNight = new int[horizon];
+            for (int i = 0; i < inventory.slotsByBed.length; i++) {
+                inventory.slotsByBed[i] = new BitSet();
+                inventory.slotsSetUpAs[i] = new BitSet();
+            }
+            inventory.firstDay = today.toEpochDay();
+            classes.put(roomClass, inventory);
+        }
+    }
+
+    public LocalDate today(Room.RoomClass roomClass) {
+        return LocalDate.ofEpochDay(classes.get(roomClass).firstDay);
+    }
+
+    public LocalDate lastBookableDay(Room.RoomClass roomClass) {
+        return LocalDate.ofEpochDay(classes.get(roomClass).firstDay + horizon);
+    }
+
+    // Registers every room of the store, none of them set up yet, as free on every night of the horizon, giving each a
+    // slot in its class in store order; only called once, while setting up the hotel. One pass over the store's columns
+    // fills the per-room arrays; the free bitmaps need no work, as a night with nothing taken has none
+    public void addRooms(RoomStore store) {
+        rooms = store;
+        slotByIndex = new int[store.size()];
+        for (ClassInventory inventory : classes.values()) {
+            inventory.roomNumbers = new int[store.size()];
+            inventory.zoneBySlot = new int[store.size()];
+        }
+        Room.BedType[] bedTypes = Room.BedType.values();
+        for (int index = 0; index < store.size(); index++) {
+            ClassInventory inventory = classes.get(store.roomClass(index));
+            int slot = inventory.size++;
+            int roomNumber = store.roomNumber(index);
+            inventory.roomNumbers[slot] = roomNumber;
+            inventory.zoneBySlot[slot] = zone(roomNumber);
+            slotByIndex[index] = slot;
+            int allowedBeds = store.allowedBeds(index);
+            for (Room.BedType bedType : bedTypes) {
+                if ((allowedBeds & 1 << bedType.ordinal()) != 0) {
+                    inventory.slotsByBed[bedType.ordinal()].set(slot);
+                }
+            }
+        }
+        for (ClassInventory inventory : classes.values()) {
+            inventory.roomNumbers = Arrays.copyOf(inventory.roomNumbers, inventory.size);
+            inventory.allSlots.set(0, inventory.size);
+            numberZones(inventory);
+        }
+    }
+
+    // Replaces each slot's zone number by its position among the class's zones in ascending order
+    private static void numberZones(ClassInventory inventory) {
+        int[] zones = Arrays.copyOf(inventory.zoneBySlot, inventory.size);
+        Arrays.sort(zones);
+        int count = 0;
+        for (int i = 0; i < zones.length; i++) {
+            if (i == 0 || zones[i] != zones[i - 1]) {
+                zones[count++] = zones[i];
+            }
+        }
+        inventory.zoneCount = count;
+        int[] zoneBySlot = new int[inventory.size];
+        int previous = 0;
+        for (int slot = 0; slot < inventory.size; slot++) {
+            // Rooms are mostly listed floor by floor, so the zone seldom changes from one slot to the next
+            if (slot == 0 || inventory.zoneBySlot[slot] != zones[previous]) {
+                previous = Arrays.binarySearch(zones, 0, count, inventory.zoneBySlot[slot]);
+            }
+            zoneBySlot[slot] = previous;
+        }
+        inventory.zoneBySlot = zoneBySlot;
+    }
+
+    // Moves the class horizon forward, recycling the slots of nights that have passed
+    public void rollTo(Room.RoomClass roomClass, LocalDate today) {
+        ClassInventory inventory = classes.get(roomClass);
+        long day = today.toEpochDay();
+        if (day <= inventory.firstDay) {
+            return;
+        }
+        long passed = Math.min(day - inventory.firstDay, horizon);
+        for (long d = inventory.firstDay; d < inventory.firstDay + passed; d++) {
+            inventory.freeByNight[slot(d)] = null;
+            inventory.bookedByNight[slot(d)] = 0;
+        }
+        inventory.firstDay = day;
+    }
+
+    // True if the stay starts today or later and ends within the horizon
+    public boolean covers(Room.RoomClass roomClass, LocalDate checkIn, LocalDate checkOut) {
+        long firstDay = classes.get(roomClass).firstDay;
+        long from = checkIn.toEpochDay();
+        long to = checkOut.toEpochDay();
+        return from >= firstDay && to > from && to <= firstDay + horizon;
+    }
+
+    // Returns the lowest room number of the class free for every night in [checkIn, checkOut), or -1
+    public int firstFree(Room.RoomClass roomClass, LocalDate checkIn, LocalDate checkOut) {
+        return firstFree(roomClass, null, checkIn, checkOut);
+    }
+
+    // As firstFree, only among rooms that can be set up with the bed type (any room if it is null)
+    public int firstFree(Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn, LocalDate checkOut) {
+        BitSet free = freeSlots(roomClass, checkIn, checkOut);
+        if (bedType != null) {
+            free.and(slotsWithBed(roomClass, bedType));
+        }
+        int slot = free.nextSetBit(0);
+        return slot < 0 ? -1 : classes.get(roomClass).roomNumbers[slot];
+    }
+
+    // Slots of the rooms of the class that offer the bed type; shared, so callers must not modify it
+    public BitSet slotsWithBed(Room.RoomClass roomClass, Room.BedType bedType) {
+        return classes.get(roomClass).slotsByBed[bedType.ordinal()];
+    }
+
+    // Slots of the rooms of the class whose beds are set up as the bed type now; shared, so callers must not modify it
+    public BitSet slotsSetUpAs(Room.RoomClass roomClass, Room.BedType bedType) {
+        return classes.get(roomClass).slotsSetUpAs[bedType.ordinal()];
+    }
+
+    // Moves the room to the set-up index of its new bed type; call before Room.setBedType, which it reads the old one from
+    public void setUp(Room room, Room.BedType bedType) {
+        ClassInventory inventory = classes.get(room.getRoomClass());
+        int slot = slotOf(room.getRoomNumber());
+        if (room.getBedType() != null) {
+            inventory.slotsSetUpAs[room.getBedType().ordinal()].clear(slot);
+        }
+        if (bedType != null) {
+            inventory.slotsSetUpAs[bedType.ordinal()].set(slot);
+        }
+    }
+
+    // Number of housekeeping zones with rooms of the class
+    public int zoneCount(Room.RoomClass roomClass) {
+        return classes.get(roomClass).zoneCount;
+    }
+
+    // Housekeeping zone of the room in the slot, from 0 for the class's lowest zone up to zoneCount - 1
+    public int zoneOf(Room.RoomClass roomClass, int slot) {
+        return classes.get(roomClass).zoneBySlot[slot];
+    }
+
+    // Rooms are grouped into housekeeping zones by their hundreds, which is the floor in layouts numbered floor * 100 + room
+    static int zone(int roomNumber) {
+        return roomNumber / 100;
+    }
+
+    // Bed types offered by at least one room of the class, as a Room.bedMask
+    public int bedTypesOffered(Room.RoomClass roomClass) {
+        int mask = 0;
+        for (Room.BedType bedType : Room.BedType.values()) {
+            if (!slotsWithBed(roomClass, bedType).isEmpty()) {
+                mask |= Room.bedMask(bedType);
+            }
+        }
+        return mask;
+    }
+
+    public int countFree(Room.RoomClass roomClass, LocalDate checkIn, LocalDate checkOut) {
+        return freeSlots(roomClass, checkIn, checkOut).cardinality();
+    }
+
+    // Takes the nights of a stay that are inside the horizon
+    public void reserve(Room room, LocalDate checkIn, LocalDate checkOut) {
+        ClassInventory inventory = classes.get(room.getRoomClass());
+        int slot = slotOf(room.getRoomNumber());
+        long from = Math.max(checkIn.toEpochDay(), inventory.firstDay);
+        long to = Math.min(checkOut.toEpochDay(), inventory.firstDay + horizon);
+        for (long d = from; d < to; d++) {
+            BitSet night = inventory.freeByNight[slot(d)];
+            if (night == null) {
+                night = (BitSet) inventory.allSlots.clone();
+                inventory.freeByNight[slot(d)] = night;
+            }
+            if (night.get(slot)) {
+                night.clear(slot);
+                inventory.bookedByNight[slot(d)]++;
+            }
+        }
+    }
+
+    // Frees the nights of a stay that are still inside the horizon
+    public void release(Room room, LocalDate checkIn, LocalDate checkOut) {
+        ClassInventory inventory = classes.get(room.getRoomClass());
+        int slot = slotOf(room.getRoomNumber());
+        long from = Math.max(checkIn.toEpochDay(), inventory.firstDay);
+        long to = Math.min(checkOut.toEpochDay(), inventory.firstDay + horizon);
+        for (long d = from; d < to; d++) {
+            BitSet night = inventory.freeByNight[slot(d)];
+            if (night != null && !night.get(slot)) {
+                night.set(slot);
+                if (--inventory.bookedByNight[slot(d)] == 0) {
+                    inventory.freeByNight[slot(d)] = null;
+                }
+            }
+        }
+    }
+
+    // Rooms of the class taken on the night, 0 outside the horizon
+    public int bookedCount(Room.RoomClass roomClass, long epochDay) {
+        ClassInventory inventory = classes.get(roomClass);
+        if (epochDay < inventory.firstDay || epochDay >= inventory.firstDay + horizon) {
+            return 0;
+        }
+        return inventory.bookedByNight[slot(epochDay)];
+    }
+
+    public int roomCount(Room.RoomClass roomClass) {
+        return classes.get(roomClass).size;
+    }
+
+    // Slots are numbered in the order rooms were added, which need not be room-number order
+    public int roomNumberAt(Room.RoomClass roomClass, int slot) {
+        return classes.get(roomClass).roomNumbers[slot];
+    }
+
+    // Slot of the room within its class
+    public int slotOf(int roomNumber) {
+        return slotByIndex[rooms.indexOf(roomNumber)];
+    }
+
+    // Returns the slots of the class free for every night in [checkIn, checkOut), empty if the stay is outside the horizon.
+    // Intersects the class slots with the free bitmap of each night, stopping early once nothing is left
+    public BitSet freeSlots(Room.RoomClass roomClass, LocalDate checkIn, LocalDate checkOut) {
+        ClassInventory inventory = classes.get(roomClass);
+        BitSet free = (BitSet) inventory.allSlots.clone();
+        if (!covers(roomClass, checkIn, checkOut)) {
+            free.clear();
+            return free;
+        }
+        for (long d = checkIn.toEpochDay(); d < checkOut.toEpochDay() && !free.isEmpty(); d++) {
+            BitSet night = inventory.freeByNight[slot(d)];
+            if (night != null) {
+                free.and(night);
+            }
+        }
+        return free;
+    }
+
+    private int slot(long epochDay) {
+        return (int) Math.floorMod(epochDay, (long) horizon);
+    }
+}
+
+// Yield-management rule tables: multipliers on a room's base rate by how full its class is on the night, how far
+// ahead the night is, and the bed set-up. Loaded from a properties file such as
+//   occupancy.0.6=1.10      (from 60% of the class taken on the night)
+//   occupancy.0.9=1.40
+//   leadTime.0=1.20         (nights 0 or more days ahead, i.e. last minute)
+//   leadTime.7=1.00
+//   leadTime.90=0.90
+//   bed.KING_SIZE=1.05
+// The highest occupancy and lead-time thresholds at or below the actual value apply; anything not listed is 1.0
+class PricingRules {
+    final double[] occupancyThresholds;
+    final double[] occupancyMultipliers;
+    final int[] leadTimeThresholds;
+    final double[] leadTimeMultipliers;
+    final double[] bedMultipliers = new double[Room.BedType.values().length];
+
+    private PricingRules(TreeMap<Double, Double> occupancy, TreeMap<Integer, Double> leadTime, Map<Room.BedType, Double> beds) {
+        // Tier 0 is below every threshold and always has multiplier 1
+        occupancyThresholds = new double[occupancy.size() + 1];
+        occupancyMultipliers = new double[occupancy.size() + 1];
+        occupancyMultipliers[0] = 1.0;
+        int i = 1;
+        for (Map.Entry<Double, Double> tier : occupancy.entrySet()) {
+            occupancyThresholds[i] = tier.getKey();
+            occupancyMultipliers[i++] = tier.getValue();
+        }
+        leadTimeThresholds = new int[leadTime.size()];
+        leadTimeMultipliers = new double[leadTime.size()];
+        i = 0;
+        for (Map.Entry<Integer, Double> tier : leadTime.entrySet()) {
+            leadTimeThresholds[i] = tier.getKey();
+            leadTimeMultipliers[i++] = tier.getValue();
+        }
+        for (Room.BedType bedType : Room.BedType.values()) {
+            bedMultipliers[bedType.ordinal()] = beds.getOrDefault(bedType, 1.0);
+        }
+    }
+
+    // Every multiplier 1.0: rooms are sold at their base rate
+    public static PricingRules flat() {
+        return new PricingRules(new TreeMap<>(), new TreeMap<>(), new EnumMap<>(Room.BedType.class));
+    }
+
+    public static PricingRules load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(in);
+        }
+        TreeMap<Double, Double> occupancy = new TreeMap<>();
+        TreeMap<Integer, Double> leadTime = new TreeMap<>();
+        Map<Room.BedType, Double> beds = new EnumMap<>(Room.BedType.class);
+        for (String key : properties.stringPropertyNames()) {
+            double multiplier = Double.parseDouble(properties.getProperty(key).trim());
+            if (multiplier <= 0) {
+                throw new IllegalArgumentException("Multiplier for " + key + " must be positive");
+            }
+            if (key.startsWith("occupancy.")) {
+                double threshold = Double.parseDouble(key.substring("occupancy.".length()));
+                if (threshold <= 0 || threshold > 1) {
+                    throw new IllegalArgumentException("Occupancy threshold " + key + " must be above 0 and at most 1");
+                }
+                occupancy.put(threshold, multiplier);
+            } else if (key.startsWith("leadTime.")) {
+                leadTime.put(Integer.parseInt(key.substring("leadTime.".length())), multiplier);
+            } else if (key.startsWith("bed.")) {
+                beds.put(Room.BedType.valueOf(key.substring("bed.".length()).toUpperCase(Locale.ROOT)), multiplier);
+            } else {
+                throw new IllegalArgumentException("Unknown pricing rule " + key);
+            }
+        }
+        return new PricingRules(occupancy, leadTime, beds);
+    }
+
+    int occupancyTier(int booked, int total) {
+        double occupancy = total == 0 ? 0 : (double) booked / total;
+        int tier = 0;
+        while (tier + 1 < occupancyThresholds.length && occupancy >= occupancyThresholds[tier + 1]) {
+            tier++;
+        }
+        return tier;
+    }
+
+    double leadTimeMultiplier(long daysAhead) {
+        double multiplier = 1.0;
+        for (int i = 0; i < leadTimeThresholds.length && daysAhead >= leadTimeThresholds[i]; i++) {
+            multiplier = leadTimeMultipliers[i];
+        }
+        return multiplier;
+    }
+}
+
+// Nightly prices per room class, bed type and night. Quotes are served without taking any booking lock: each
+// class keeps the occupancy tier of every night in the horizon, which the booking path refreshes (under the class
+// lock it already holds) only for the nights a stay touches, and only writes when a threshold is crossed. A quote is
+// then a tier lookup and a multiply per night.
+class PricingEngine {
+    private final int horizon;
+    private volatile PricingRules rules;
+    // Per class and night slot: the epoch day the entry is for in the high bits and the occupancy tier in the low byte.
+    // An entry for another day is stale and reads as tier 0, so nights rolling out of the horizon need no clean-up
+    private final AtomicLongArray tiers;
+
+    public PricingEngine(PricingRules rules, int horizon) {
+        this.rules = rules;
+        this.horizon = horizon;
+        this.tiers = new AtomicLongArray(Room.RoomClass.values().length * horizon);
+    }
+
+    // Swaps in new rules; tiers are recomputed as the nights are next booked or cancelled
+    public void setRules(PricingRules rules) {
+        this.rules = rules;
+    }
+
+    // Updates the cached tier of one night after a booking or cancellation; called with the class lock held
+    public void occupancyChanged(Room.RoomClass roomClass, long epochDay, int booked, int total) {
+        int index = index(roomClass, epochDay);
+        long entry = epochDay << 8 | rules.occupancyTier(booked, total);
+        if (tiers.get(index) != entry) {
+            tiers.set(index, entry);
+        }
+    }
+
+    // Nightly rate for a room with the given base rate
+    public int nightlyRate(int baseRate, Room.RoomClass roomClass, Room.BedType bedType, LocalDate night, LocalDate today) {
+        PricingRules current = rules;
+        long epochDay = night.toEpochDay();
+        long entry = tiers.get(index(roomClass, epochDay));
+        int tier = entry >> 8 == epochDay ? (int) (entry & 0xFF) : 0;
+        if (tier >= current.occupancyMultipliers.length) {
+            tier = current.occupancyMultipliers.length - 1; // the rules changed under a cached tier
+        }
+        double multiplier = current.occupancyMultipliers[tier]
+            * current.leadTimeMultiplier(epochDay - today.toEpochDay())
+            * (bedType == null ? 1.0 : current.bedMultipliers[bedType.ordinal()]);
+        return (int) Math.round(baseRate * multiplier);
+    }
+
+    // Price of every night of a stay, in order
+    public int[] nightlyRates(int baseRate, Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn, int lengthOfStay) {
+        LocalDate today = LocalDate.now();
+        int[] rates = new int[lengthOfStay];
+        for (int i = 0; i < lengthOfStay; i++) {
+            rates[i] = nightlyRate(baseRate, roomClass, bedType, checkIn.plusDays(i), today);
+        }
+        return rates;
+    }
+
+    // The nightly rate charged for a whole stay: the average of its nightly prices, rounded to the nearest unit
+    public int stayRate(int baseRate, Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn, int lengthOfStay) {
+        long total = 0;
+        for (int rate : nightlyRates(baseRate, roomClass, bedType, checkIn, lengthOfStay)) {
+            total += rate;
+        }
+        return (int) Math.round((double) total / lengthOfStay);
+    }
+
+    private int index(Room.RoomClass roomClass, long epochDay) {
+        return roomClass.ordinal() * horizon + (int) Math.floorMod(epochDay, (long) horizon);
+    }
+}
+
+// Stays of one room class waiting for a room to free up, guarded by the class lock. Each check-in date holds a priority
+// queue per bed type: priority stays, the first few each night up to the class's priority allowance, come before plain
+// waitlisted ones, and otherwise the earliest request goes first. Neither holds a room until one is freed for it. Taking the best stay off a queue is O(log N) in its length.
+// Entries are journalled like bookings, so they are restored with their places in the queues after a restart
+class Waitlist {
+    static class Entry {
+        final String firstName;
+        final String lastName;
+        final int lengthOfStay;
+        final Room.BedType bedType;
+        final LocalDate checkIn;
+        final boolean priority;
+        final long sequence; // order of the request within the class, kept across restarts
+        private volatile Reservation reservation; // set once a room is found
+
+        private Entry(String firstName, String lastName, int lengthOfStay, Room.BedType bedType, LocalDate checkIn, boolean priority, long sequence) {
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.lengthOfStay = lengthOfStay;
+            this.bedType = bedType;
+            this.checkIn = checkIn;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        // The booking made for this stay, or null while it is still waiting
+        public Reservation getReservation() {
+            return reservation;
+        }
+    }
+
+    private static final Comparator<Entry> PRIORITY = Comparator.comparing((Entry entry) -> !entry.priority).thenComparingLong(entry -> entry.sequence);
+
+    private final TreeMap<LocalDate, EnumMap<Room.BedType, PriorityQueue<Entry>>> byCheckIn = new TreeMap<>();
+    private final Map<Long, Integer> priorityByNight = new HashMap<>();
+    private long nextSequence;
+    private int size;
+
+    // An entry already holding its booking, for a stay that found a room straight away
+    static Entry booked(Reservation reservation) {
+        Entry entry = new Entry(reservation.getGuest().getFirstName(), reservation.getGuest().getLastName(),
+            reservation.getGuest().getLengthOfStay(), reservation.getBedType(), reservation.getCheckIn(), false, -1);
+        entry.reservation = reservation;
+        return entry;
+    }
+
+    // True if fewer than allowance stays have priority on every night of the stay
+    public boolean hasPriorityPlace(LocalDate checkIn, int lengthOfStay, int allowance) {
+        for (long d = checkIn.toEpochDay(); d < checkIn.toEpochDay() + lengthOfStay; d++) {
+            if (priorityByNight.getOrDefault(d, 0) >= allowance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // An entry read back from the journal, with the sequence it was given when first added, for restore
+    static Entry restored(String firstName, String lastName, int lengthOfStay, Room.BedType bedType, LocalDate checkIn, boolean priority, long sequence) {
+        return new Entry(firstName, lastName, lengthOfStay, bedType, checkIn, priority, sequence);
+    }
+
+    public Entry add(String firstName, String lastName, int lengthOfStay, Room.BedType bedType, LocalDate checkIn, boolean priority) {
+        Entry entry = new Entry(firstName, lastName, lengthOfStay, bedType, checkIn, priority, nextSequence);
+        restore(entry);
+        return entry;
+    }
+
+    // Puts an entry in its queue, keeping later requests behind it
+    public void restore(Entry entry) {
+        nextSequence = Math.max(nextSequence, entry.sequence + 1);
+        byCheckIn.computeIfAbsent(entry.checkIn, d -> new EnumMap<>(Room.BedType.class))
+            .computeIfAbsent(entry.bedType, b -> new PriorityQueue<>(PRIORITY)).add(entry);
+        if (entry.priority) {
+            countPriority(entry, 1);
+        }
+        size++;
+    }
+
+    // Offers the best stay of each queue checking in from..to-1 to book, in date order, for as long as book finds them a
+    // room. Returns the stays that were booked
+    public List<Entry> promote(LocalDate from, LocalDate to, Function<Entry, Reservation> book) {
+        List<Entry> promoted = new ArrayList<>();
+        Iterator<EnumMap<Room.BedType, PriorityQueue<Entry>>> dates = byCheckIn.subMap(from, to).values().iterator();
+        while (dates.hasNext()) {
+            EnumMap<Room.BedType, PriorityQueue<Entry>> queues = dates.next();
+            Iterator<PriorityQueue<Entry>> beds = queues.values().iterator();
+            while (beds.hasNext()) {
+                PriorityQueue<Entry> queue = beds.next();
+                // Later stays never overtake the best one, so a head that does not fit holds back its queue
+                Reservation reservation;
+                while (!queue.isEmpty() && (reservation = book.apply(queue.peek())) != null) {
+                    Entry entry = queue.poll();
+                    entry.reservation = reservation;
+                    remove(entry);
+                    promoted.add(entry);
+                }
+                if (queue.isEmpty()) {
+                    beds.remove();
+                }
+            }
+            if (queues.isEmpty()) {
+                dates.remove();
+            }
+        }
+        return promoted;
+    }
+
+    // Drops the stays that were due to check in before today and never got a room
+    public void dropBefore(LocalDate today) {
+        Map<LocalDate, EnumMap<Room.BedType, PriorityQueue<Entry>>> past = byCheckIn.headMap(today);
+        for (EnumMap<Room.BedType, PriorityQueue<Entry>> queues : past.values()) {
+            for (PriorityQueue<Entry> queue : queues.values()) {
+                queue.forEach(this::remove);
+            }
+        }
+        past.clear();
+    }
+
+    // Takes the entry off its queue, as replaying its promotion from the journal; false if it is not waiting
+    public boolean remove(LocalDate checkIn, Room.BedType bedType, long sequence) {
+        EnumMap<Room.BedType, PriorityQueue<Entry>> queues = byCheckIn.get(checkIn);
+        PriorityQueue<Entry> queue = queues == null ? null : queues.get(bedType);
+        Entry entry = queue == null ? null : queue.stream().filter(e -> e.sequence == sequence).findFirst().orElse(null);
+        if (entry == null) {
+            return false;
+        }
+        queue.remove(entry);
+        remove(entry);
+        if (queue.isEmpty()) {
+            queues.remove(bedType);
+            if (queues.isEmpty()) {
+                byCheckIn.remove(checkIn);
+            }
+        }
+        return true;
+    }
+
+    // Every stay still waiting, in order of request
+    public List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(size);
+        for (EnumMap<Room.BedType, PriorityQueue<Entry>> queues : byCheckIn.values()) {
+            for (PriorityQueue<Entry> queue : queues.values()) {
+                entries.addAll(queue);
+            }
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.sequence));
+        return entries;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Bookkeeping for an entry leaving its queue
+    private void remove(Entry entry) {
+        if (entry.priority) {
+            countPriority(entry, -1);
+        }
+        size--;
+    }
+
+    private void countPriority(Entry entry, int change) {
+        for (long d = entry.checkIn.toEpochDay(); d < entry.checkIn.toEpochDay() + entry.lengthOfStay; d++) {
+            priorityByNight.merge(d, change, (a, b) -> a + b == 0 ? null : a + b);
+        }
+    }
+}
+
+// Reservations kept in A-to-Z order of case-folded last name, then first name, room number and order of entry.
+// Updated on every booking and cancellation, so a sorted listing is a plain walk with no copying or sorting,
+// and a page is found by seeking to its first key in O(log N) rather than by counting rows from the start
+class AlphabeticalReservations {
+    private static final class Key implements Comparable<Key> {
+        final String lastName;
+        final String firstName;
+        final int roomNumber;
+        final long id;
+
+        Key(String lastName, String firstName, int roomNumber, long id) {
+            this.lastName = lastName;
+            this.firstName = firstName;
+            this.roomNumber = roomNumber;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int c = lastName.compareTo(other.lastName);
+            if (c == 0) {
+                c = firstName.compareTo(other.firstName);
+            }
+            if (c == 0) {
+                c = Integer.compare(roomNumber, other.roomNumber);
+            }
+            return c != 0 ? c : Long.compare(id, other.id);
+        }
+    }
+
+    private final ConcurrentSkipListMap<Key, Reservation> byName = new ConcurrentSkipListMap<>();
+
+    private static Key keyOf(Reservation reservation) {
+        Guest guest = reservation.getGuest();
+        return new Key(GuestNameIndex.fold(guest.getLastName()), GuestNameIndex.fold(guest.getFirstName()),
+            reservation.getRoom().getRoomNumber(), reservation.getId());
+    }
+
+    public void add(Reservation reservation) {
+        byName.put(keyOf(reservation), reservation);
+    }
+
+    public void remove(Reservation reservation) {
+        byName.remove(keyOf(reservation));
+    }
+
+    // Every reservation in order; a live view that reflects concurrent changes as it is walked
+    public Collection<Reservation> all() {
+        return byName.values();
+    }
+
+    // Up to pageSize reservations from the first last name at or after the given one
+    public List<Reservation> pageFrom(String lastName, int pageSize) {
+        return page(byName.tailMap(new Key(GuestNameIndex.fold(lastName), "", Integer.MIN_VALUE, Long.MIN_VALUE), true), pageSize);
+    }
+
+    // Up to pageSize reservations following the last one shown on the previous page
+    public List<Reservation> pageAfter(Reservation previous, int pageSize) {
+        return page(byName.tailMap(keyOf(previous), false), pageSize);
+    }
+
+    private static List<Reservation> page(Map<Key, Reservation> tail, int pageSize) {
+        List<Reservation> page = new ArrayList<>(pageSize);
+        for (Reservation reservation : tail.values()) {
+            if (page.size() == pageSize) {
+                break;
+            }
+            page.add(reservation);
+        }
+        return page;
+    }
+}
+
+// Running totals per room class, updated as reservations are made and deleted and readable without locking
+class BookingTotals {
+    private final LongAdder[] reservationCounts = new LongAdder[Room.RoomClass.values().length];
+    private final LongAdder[] income = new LongAdder[Room.RoomClass.values().length];
+
+    public BookingTotals() {
+        for (int i = 0; i < reservationCounts.length; i++) {
+            reservationCounts[i] = new LongAdder();
+            income[i] = new LongAdder();
+        }
+    }
+
+    public void recordBooking(Reservation reservation) {
+        int i = reservation.getRoom().getRoomClass().ordinal();
+        reservationCounts[i].increment();
+        income[i].add(reservation.getRevenue());
+    }
+
+    public void recordCancellation(Reservation reservation) {
+        int i = reservation.getRoom().getRoomClass().ordinal();
+        reservationCounts[i].decrement();
+        income[i].add(-reservation.getRevenue());
+    }
+
+    // Counts a stay that has already checked out and been archived
+    public void recordArchived(Room.RoomClass roomClass, long revenue) {
+        reservationCounts[roomClass.ordinal()].increment();
+        income[roomClass.ordinal()].add(revenue);
+    }
+
+    public long reservationCount(Room.RoomClass roomClass) {
+        return reservationCounts[roomClass.ordinal()].sum();
+    }
+
+    public long income(Room.RoomClass roomClass) {
+        return income[roomClass.ordinal()].sum();
+    }
+}
+
+// Revenue, ADR, RevPAR and occupancy per room class and bed type over a window of nights [from, to).
+// All figures are gathered in one pass over the reservations, split across cores for large histories; stays that
+// have checked out are added from the archive afterwards
+class RevenueAnalytics {
+    private static final int CLASSES = Room.RoomClass.values().length;
+    private static final int BEDS = Room.BedType.values().length + 1; // last column for stays with no bed type set
+    private static final int CELLS = CLASSES * BEDS;
+
+    private final long windowStart;
+    private final long windowEnd;
+    private final int[] roomsPerClass;
+    private final long[] totals; // revenue per (class, bed) cell, then room nights sold per cell
+
+    private RevenueAnalytics(long windowStart, long windowEnd, int[] roomsPerClass, long[] totals) {
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.roomsPerClass = roomsPerClass;
+        this.totals = totals;
+    }
+
+    // roomsPerClass is the number of rooms of each class, indexed by ordinal, used as the supply for RevPAR and occupancy
+    public static RevenueAnalytics compute(Collection<Reservation> reservations, boolean parallel, int[] roomsPerClass, LocalDate from, LocalDate to) {
+        long windowStart = from.toEpochDay();
+        long windowEnd = to.toEpochDay();
+        Stream<Reservation> stream = parallel ? reservations.parallelStream() : reservations.stream();
+        long[] totals = stream.collect(
+            () -> new long[CELLS * 2],
+            (acc, reservation) -> add(acc, windowStart, windowEnd, reservation.getRoom().getRoomClass(), reservation.getBedType(),
+                reservation.getCheckIn().toEpochDay(), reservation.getCheckOut().toEpochDay(), reservation.getRate()),
+            (a, b) -> {
+                for (int i = 0; i < a.length; i++) {
+                    a[i] += b[i];
+                }
+            });
+        return new RevenueAnalytics(windowStart, windowEnd, roomsPerClass, totals);
+    }
+
+    // Counts the nights of a checked-out stay read back from the archive that fall in the window
+    void addArchived(Room.RoomClass roomClass, StayArchive.ArchivedStay stay) {
+        long checkIn = stay.checkIn.toEpochDay();
+        add(totals, windowStart, windowEnd, roomClass, stay.bedType, checkIn, checkIn + stay.lengthOfStay, stay.rate);
+    }
+
+    private static void add(long[] acc, long windowStart, long windowEnd, Room.RoomClass roomClass, Room.BedType bedType, long checkIn, long checkOut, int rate) {
+        long nights = Math.min(checkOut, windowEnd) - Math.max(checkIn, windowStart);
+        if (nights > 0) {
+            int cell = cell(roomClass, bedType);
+            acc[cell] += nights * rate;
+            acc[CELLS + cell] += nights;
+        }
+    }
+
+    private static int cell(Room.RoomClass roomClass, Room.BedType bedType) {
+        return roomClass.ordinal() * BEDS + (bedType == null ? BEDS - 1 : bedType.ordinal());
+    }
+
+    public long revenue(Room.RoomClass roomClass) {
+        long sum = 0;
+        for (int b = 0; b < BEDS; b++) {
+            sum += totals[roomClass.ordinal() * BEDS + b];
+        }
+        return sum;
+    }
+
+    public long nightsSold(Room.RoomClass roomClass) {
+        long sum = 0;
+        for (int b = 0; b < BEDS; b++) {
+            sum += totals[CELLS + roomClass.ordinal() * BEDS + b];
+        }
+        return sum;
+    }
+
+    public long roomNightsAvailable(Room.RoomClass roomClass) {
+        return roomsPerClass[roomClass.ordinal()] * windowNights();
+    }
+
+    public long revenue(Room.BedType bedType) {
+        long sum = 0;
+        for (int c = 0; c < CLASSES; c++) {
+            sum += totals[c * BEDS + bedType.ordinal()];
+        }
+        return sum;
+    }
+
+    public long nightsSold(Room.BedType bedType) {
+        long sum = 0;
+        for (int c = 0; c < CLASSES; c++) {
+            sum += totals[CELLS + c * BEDS + bedType.ordinal()];
+        }
+        return sum;
+    }
+
+    // Bed types are set per stay rather than per room, so their RevPAR and occupancy are shares of the whole hotel
+    public long roomNightsAvailable() {
+        long rooms = 0;
+        for (int count : roomsPerClass) {
+            rooms += count;
+        }
+        return rooms * windowNights();
+    }
+
+    private long windowNights() {
+        return Math.max(windowEnd - windowStart, 0);
+    }
+
+    // Average daily rate: revenue per room night sold
+    public static double adr(long revenue, long nightsSold) {
+        return nightsSold == 0 ? 0 : (double) revenue / nightsSold;
+    }
+
+    // Revenue per available room night
+    public static double revPar(long revenue, long roomNightsAvailable) {
+        return roomNightsAvailable == 0 ? 0 : (double) revenue / roomNightsAvailable;
+    }
+
+    public static double occupancy(long nightsSold, long roomNightsAvailable) {
+        return roomNightsAvailable == 0 ? 0 : 100.0 * nightsSold / roomNightsAvailable;
+    }
+}
+
+// Case-folded index of reservations by guest last name, supporting exact and prefix lookups.
+// Lookups never lock; changes lock a stripe chosen by the folded name so empty names can be dropped safely
+class GuestNameIndex {
+    private final ConcurrentSkipListMap<String, ConcurrentSkipListMap<Long, Reservation>> byLastName = new ConcurrentSkipListMap<>();
+    private final ReentrantLock[] stripes = new ReentrantLock[32];
+
+    public GuestNameIndex() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public static String fold(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public void add(Reservation reservation) {
+        String key = fold(reservation.getGuest().getLastName());
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            byLastName.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>()).put(reservation.getId(), reservation);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    public void remove(Reservation reservation) {
+        String key = fold(reservation.getGuest().getLastName());
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            ConcurrentSkipListMap<Long, Reservation> matches = byLastName.get(key);
+            if (matches != null) {
+                matches.remove(reservation.getId());
+                if (matches.isEmpty()) {
+                    byLastName.remove(key);
+                }
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    // Reservations under exactly this last name, in order of entry
+    public Collection<Reservation> findByLastName(String lastName) {
+        ConcurrentSkipListMap<Long, Reservation> matches = byLastName.get(fold(lastName));
+        return matches == null ? new ArrayList<>() : matches.values();
+    }
+
+    // Reservations whose last name starts with the prefix, grouped by last name A-to-Z
+    public List<Reservation> findByPrefix(String prefix) {
+        String from = fold(prefix);
+        List<Reservation> result = new ArrayList<>();
+        for (ConcurrentSkipListMap<Long, Reservation> matches : byLastName.subMap(from, true, from + Character.MAX_VALUE, false).values()) {
+            result.addAll(matches.values());
+        }
+        return result;
+    }
+
+    private ReentrantLock stripeFor(String key) {
+        return stripes[Math.floorMod(key.hashCode(), stripes.length)];
+    }
+}
+
+// Durable record of every booking, cancellation and waitlisted stay: an append-only binary journal with group-committed fsyncs,
+// plus compact snapshots that let older journal files be dropped. Each journal file is one generation; a snapshot
+// records the first generation it does not include, so startup loads the snapshot and replays only the newer files.
+// A snapshot also records how far the stay archive reached when it was taken, since the archive after that point is
+// only as durable as the journal files that follow
+class ReservationJournal implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x484D5332; // "HMS2"
+    private static final byte BOOK = 1;
+    private static final byte CANCEL = 2;
+    private static final byte CHECK_OUT = 3;
+    private static final byte WAITLIST = 4;
+    private static final byte WAITLIST_REMOVED = 5;
+
+    // Receives the records read back from disk during recovery
+    interface Replay {
+        void book(int roomNumber, String firstName, String lastName, int lengthOfStay, Room.BedType bedType, int rate, LocalDate checkIn);
+
+        // on is the day the stay was cancelled or checked out
+        void cancel(int roomNumber, LocalDate checkIn, LocalDate on);
+
+        void checkOut(int roomNumber, LocalDate checkIn, LocalDate on);
+
+        // Waitlisted stays, ignored by readers that only want the bookings
+        default void waitlist(Room.RoomClass roomClass, Waitlist.Entry entry) {
+        }
+
+        // A waitlisted stay that was given a room; its booking is the record before
+        default void waitlistRemoved(Room.RoomClass roomClass, LocalDate checkIn, Room.BedType bedType, long sequence) {
+        }
+    }
+
+    private final Path dir;
+    private FileChannel channel;
+    private long generation;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedCount;
+    private long durableCount;
+    private boolean flushing;
+    private long recordsSinceSnapshot;
+
+    private ReservationJournal(Path dir) {
+        this.dir = dir;
+    }
+
+    // Replays the latest snapshot and the journal files written after it, then starts a new journal generation
+    public static ReservationJournal open(Path dir, Replay replay) throws IOException {
+        Files.createDirectories(dir);
+        ReservationJournal journal = new ReservationJournal(dir);
+        journal.startGeneration(journal.load(replay, true) + 1);
+        return journal;
+    }
+
+    // Replays what a restart would load without changing any file, so it is safe while the directory's journal is open
+    public static void replay(Path dir, Replay replay) throws IOException {
+        new ReservationJournal(dir).load(replay, false);
+    }
+
+    // Replays the snapshot and the journal files after it, returning the last generation found. With repair, a torn
+    // record at the end of a journal file is cut off
+    private long load(Replay replay, boolean repair) throws IOException {
+        long firstGeneration = 0;
+        Path snapshot = dir.resolve("snapshot.bin");
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a reservation snapshot: " + snapshot);
+                }
+                firstGeneration = in.readLong();
+                in.readLong(); // the archive mark, read by archiveMark
+                in.readLong();
+                long count = in.readLong();
+                for (long i = 0; i < count; i++) {
+                    if (!readRecord(in, replay)) {
+                        throw new IOException("Corrupt reservation snapshot: " + snapshot);
+                    }
+                }
+            }
+        }
+        long lastGeneration = firstGeneration - 1;
+        for (long generation : generations()) {
+            if (generation >= firstGeneration) {
+                replayJournal(generation, replay, repair);
+            }
+            lastGeneration = Math.max(lastGeneration, generation);
+        }
+        return lastGeneration;
+    }
+
+    public synchronized void appendBooking(Reservation reservation) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeBooking(out, reservation);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append(bytes);
+    }
+
+    // The segment and length the stay archive had when the latest snapshot was taken, or the start of the archive if
+    // there is no snapshot: everything archived after it is archived again by replaying the journal
+    public static long[] archiveMark(Path dir) throws IOException {
+        Path snapshot = dir.resolve("snapshot.bin");
+        if (!Files.exists(snapshot)) {
+            return new long[] {0, 0};
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a reservation snapshot: " + snapshot);
+            }
+            in.readLong();
+            return new long[] {in.readLong(), in.readLong()};
+        }
+    }
+
+    public synchronized void appendCancellation(Reservation reservation, LocalDate on) {
+        appendRemoval(CANCEL, reservation, on);
+    }
+
+    // Records that a finished stay has moved from the live reservations to the archive
+    public synchronized void appendCheckOut(Reservation reservation, LocalDate on) {
+        appendRemoval(CHECK_OUT, reservation, on);
+    }
+
+    public synchronized void appendWaitlisted(Room.RoomClass roomClass, Waitlist.Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeWaitlisted(out, roomClass, entry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append(bytes);
+    }
+
+    // Records that a waitlisted stay left the waitlist for the room booked just before
+    public synchronized void appendWaitlistRemoved(Room.RoomClass roomClass, Waitlist.Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(WAITLIST_REMOVED);
+            out.writeByte(roomClass.ordinal());
+            out.writeLong(entry.checkIn.toEpochDay());
+            out.writeByte(entry.bedType.ordinal());
+            out.writeLong(entry.sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append(bytes);
+    }
+
+    private void appendRemoval(byte type, Reservation reservation, LocalDate on) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeInt(reservation.getRoom().getRoomNumber());
+            out.writeLong(reservation.getCheckIn().toEpochDay());
+            out.writeLong(on.toEpochDay());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append(bytes);
+    }
+
+    // Blocks until every record appended so far is on disk. The first waiting thread writes and fsyncs the whole
+    // pending batch while later callers queue behind it, so concurrent bookings share one fsync
+    public void sync() {
+        ByteArrayOutputStream batch;
+        long batchCount;
+        synchronized (this) {
+            long target = appendedCount;
+            while (durableCount < target && flushing) {
+                waitQuietly();
+            }
+            if (durableCount >= target) {
+                return;
+            }
+            flushing = true;
+            batch = pending;
+            batchCount = appendedCount;
+            pending = new ByteArrayOutputStream();
+        }
+        boolean written = false;
+        try {
+            writeFully(batch);
+            channel.force(false);
+            written = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            synchronized (this) {
+                if (written) {
+                    durableCount = Math.max(durableCount, batchCount);
+                }
+                flushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized long recordsSinceSnapshot() {
+        return recordsSinceSnapshot;
+    }
+
+    // Closes the current journal file and starts the next generation, returning it. Called with bookings paused,
+    // so the next snapshot holds exactly the records of every earlier generation
+    public synchronized long rotate() throws IOException {
+        while (flushing) {
+            waitQuietly();
+        }
+        writeFully(pending);
+        pending = new ByteArrayOutputStream();
+        channel.force(false);
+        channel.close();
+        durableCount = appendedCount;
+        recordsSinceSnapshot = 0;
+        startGeneration(generation + 1);
+        return generation;
+    }
+
+    // Writes the reservations and waitlisted stays as the new snapshot, replacing the old one atomically, then drops the
+    // journal files it covers. The archive must already be on disk up to archiveMark
+    public void writeSnapshot(Collection<Reservation> reservations, Map<Room.RoomClass, List<Waitlist.Entry>> waitlisted, long firstGeneration,
+                              long[] archiveMark) throws IOException {
+        Path tmp = dir.resolve("snapshot.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16))) {
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeLong(firstGeneration);
+            data.writeLong(archiveMark[0]);
+            data.writeLong(archiveMark[1]);
+            long waiting = 0;
+            for (List<Waitlist.Entry> entries : waitlisted.values()) {
+                waiting += entries.size();
+            }
+            data.writeLong(reservations.size() + waiting);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream record = new DataOutputStream(bytes);
+            for (Reservation reservation : reservations) {
+                bytes.reset();
+                writeBooking(record, reservation);
+                writeFramed(data, bytes);
+            }
+            for (Map.Entry<Room.RoomClass, List<Waitlist.Entry>> entries : waitlisted.entrySet()) {
+                for (Waitlist.Entry entry : entries.getValue()) {
+                    bytes.reset();
+                    writeWaitlisted(record, entries.getKey(), entry);
+                    writeFramed(data, bytes);
+                }
+            }
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve("snapshot.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long generation : generations()) {
+            if (generation < firstGeneration) {
+                Files.deleteIfExists(journalFile(generation));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        while (flushing) {
+            waitQuietly();
+        }
+        writeFully(pending);
+        pending = new ByteArrayOutputStream();
+        channel.force(false);
+        channel.close();
+    }
+
+    private void append(ByteArrayOutputStream record) {
+        try {
+            writeFramed(new DataOutputStream(pending), record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        appendedCount++;
+        recordsSinceSnapshot++;
+    }
+
+    private void startGeneration(long generation) throws IOException {
+        this.generation = generation;
+        this.channel = FileChannel.open(journalFile(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void replayJournal(long generation, Replay replay, boolean repair) throws IOException {
+        Path file = journalFile(generation);
+        long validLength = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+             DataInputStream in = new DataInputStream(counter)) {
+            while (readRecord(in, replay)) {
+                validLength = counter.count;
+            }
+        }
+        // A crash can leave a half-written record at the end; cut it off so new records follow the last good one
+        if (repair && validLength < Files.size(file)) {
+            try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                truncate.truncate(validLength);
+            }
+        }
+    }
+
+    private List<Long> generations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "journal-*.wal")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                generations.add(Long.parseLong(name.substring("journal-".length(), name.length() - ".wal".length())));
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private Path journalFile(long generation) {
+        return dir.resolve("journal-" + generation + ".wal");
+    }
+
+    private void writeFully(ByteArrayOutputStream bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private synchronized void waitQuietly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the reservation journal", e);
+        }
+    }
+
+    private static void writeBooking(DataOutputStream out, Reservation reservation) throws IOException {
+        Guest guest = reservation.getGuest();
+        out.writeByte(BOOK);
+        out.writeInt(reservation.getRoom().getRoomNumber());
+        out.writeLong(reservation.getCheckIn().toEpochDay());
+        out.writeInt(guest.getLengthOfStay());
+        out.writeByte(reservation.getBedType() == null ? -1 : reservation.getBedType().ordinal());
+        out.writeInt(reservation.getRate());
+        out.writeUTF(guest.getFirstName());
+        out.writeUTF(guest.getLastName());
+    }
+
+    private static void writeWaitlisted(DataOutputStream out, Room.RoomClass roomClass, Waitlist.Entry entry) throws IOException {
+        out.writeByte(WAITLIST);
+        out.writeByte(roomClass.ordinal());
+        out.writeLong(entry.checkIn.toEpochDay());
+        out.writeByte(entry.bedType.ordinal());
+        out.writeLong(entry.sequence);
+        out.writeInt(entry.lengthOfStay);
+        out.writeBoolean(entry.priority);
+        out.writeUTF(entry.firstName);
+        out.writeUTF(entry.lastName);
+    }
+
+    // Each record is framed as [length][payload][CRC32 of payload] so torn or corrupt tails can be detected
+    private static void writeFramed(DataOutputStream out, ByteArrayOutputStream payload) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] bytes = payload.toByteArray();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // Reads and applies one framed record; false at the end of the data or on a torn or corrupt record
+    private static boolean readRecord(DataInputStream in, Replay replay) throws IOException {
+        byte[] bytes;
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > (1 << 20)) {
+                return false;
+            }
+            bytes = new byte[length];
+            in.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if (in.readInt() != (int) crc.getValue()) {
+                return false;
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte type = record.readByte();
+        switch (type) {
+            case BOOK: {
+                int roomNumber = record.readInt();
+                LocalDate checkIn = LocalDate.ofEpochDay(record.readLong());
+                int lengthOfStay = record.readInt();
+                byte bed = record.readByte();
+                int rate = record.readInt();
+                String firstName = record.readUTF();
+                String lastName = record.readUTF();
+                replay.book(roomNumber, firstName, lastName, lengthOfStay, bed < 0 ? null : Room.BedType.values()[bed], rate, checkIn);
+                return true;
+            }
+            case CANCEL:
+                replay.cancel(record.readInt(), LocalDate.ofEpochDay(record.readLong()), LocalDate.ofEpochDay(record.readLong()));
+                return true;
+            case CHECK_OUT:
+                replay.checkOut(record.readInt(), LocalDate.ofEpochDay(record.readLong()), LocalDate.ofEpochDay(record.readLong()));
+                return true;
+            case WAITLIST: {
+                Room.RoomClass roomClass = Room.RoomClass.values()[record.readByte()];
+                LocalDate checkIn = LocalDate.ofEpochDay(record.readLong());
+                Room.BedType bedType = Room.BedType.values()[record.readByte()];
+                long sequence = record.readLong();
+                int lengthOfStay = record.readInt();
+                boolean priority = record.readBoolean();
+                String firstName = record.readUTF();
+                String lastName = record.readUTF();
+                replay.waitlist(roomClass, Waitlist.restored(firstName, lastName, lengthOfStay, bedType, checkIn, priority, sequence));
+                return true;
+            }
+            case WAITLIST_REMOVED: {
+                Room.RoomClass roomClass = Room.RoomClass.values()[record.readByte()];
+                LocalDate checkIn = LocalDate.ofEpochDay(record.readLong());
+                Room.BedType bedType = Room.BedType.values()[record.readByte()];
+                replay.waitlistRemoved(roomClass, checkIn, bedType, record.readLong());
+                return true;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
+
+// Typo-tolerant guest search over every name the hotel has seen, live or archived. Each distinct first and last name
+// pair is held once, with how many live and past stays it has, and indexed by the trigrams and Soundex codes of both
+// names. A query gathers candidates from the posting lists of its own trigrams and codes, then ranks them by edit
+// distance, so only names sharing enough of the query are ever compared. A name leaves once it has neither a live nor a
+// checked-out stay. Bookings only count their names and queue those that join or leave, never waiting for the index;
+// the next search brings the postings up to date under the write lock, then searches share the read lock
+class GuestSearchIndex {
+    static class Match {
+        final String firstName;
+        final String lastName;
+        final double score; // 1 for an exact match of every word of the query
+        final int liveStays;
+        final int pastStays;
+
+        private Match(GuestName name, double score) {
+            this.firstName = name.firstName;
+            this.lastName = name.lastName;
+            this.score = score;
+            this.liveStays = name.liveStays;
+            this.pastStays = name.pastStays;
+        }
+    }
+
+    private static class GuestName {
+        final String key;
+        final String firstName;
+        final String lastName;
+        final String foldedFirst;
+        final String foldedLast;
+        final String firstSoundex;
+        final String lastSoundex;
+        // Only changed inside byName.compute, so a name is dropped in the same step as its last stay
+        volatile int liveStays;
+        volatile int pastStays;
+        int id = -1; // position in names, or -1 while not in the postings; guarded by lock
+
+        GuestName(String key, String firstName, String lastName) {
+            this.key = key;
+            this.firstName = firstName.trim();
+            this.lastName = lastName.trim();
+            this.foldedFirst = GuestNameIndex.fold(firstName);
+            this.foldedLast = GuestNameIndex.fold(lastName);
+            this.firstSoundex = soundex(foldedFirst);
+            this.lastSoundex = soundex(foldedLast);
+        }
+    }
+
+    // A word of a query has to be at least this similar to a name to count as matching it
+    private static final double MIN_SIMILARITY = 0.6;
+    // Similarity given to names that sound alike whatever their spelling
+    private static final double SOUNDS_ALIKE = 0.7;
+    // Most names gathered by spelling for one word of a query
+    private static final int MAX_RANKED = 4096;
+
+    private final Map<String, GuestName> byName = new ConcurrentHashMap<>();
+    // Names that joined or left byName since the postings were last brought up to date
+    private final Queue<GuestName> pending = new ConcurrentLinkedQueue<>();
+    // Zeroed trigram counts left by finished searches for the next ones to reuse, one per search running at once
+    private final Queue<int[]> spareCounts = new ConcurrentLinkedQueue<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Guarded by lock
+    private final List<GuestName> names = new ArrayList<>(); // by id; null where a name left, until the postings are rebuilt
+    private int left; // ids nulled since the postings were last rebuilt
+    private final Map<Long, int[]> postings = new HashMap<>(); // trigram or Soundex key -> name ids, count in slot 0
+
+    public void addLive(String firstName, String lastName, int change) {
+        count(firstName, lastName, change, 0);
+    }
+
+    public void addPast(String firstName, String lastName) {
+        count(firstName, lastName, 0, 1);
+    }
+
+    // Brings the postings up to date with every name queued so far, so a bulk load does not leave it to the first search
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            applyPending();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Up to limit guests ranked by how well their names match the words of the query, best first. One word is matched
+    // against first and last names; with more, the last word is the last name and the others the first name
+    public List<Match> search(String query, int limit) {
+        String[] words = Arrays.stream(query.trim().split("\\s+")).map(GuestNameIndex::fold).filter(w -> !w.isEmpty()).toArray(String[]::new);
+        if (words.length == 0 || limit < 1) {
+            return new ArrayList<>();
+        }
+        String last = words[words.length - 1];
+        String first = words.length > 1 ? String.join(" ", Arrays.copyOf(words, words.length - 1)) : null;
+        // Worst first, so the queue drops the weakest match once it holds more than limit
+        Comparator<Match> worstFirst = Comparator.comparingDouble((Match match) -> match.score)
+            .thenComparingInt(match -> match.liveStays + match.pastStays);
+        PriorityQueue<Match> best = new PriorityQueue<>(worstFirst);
+        if (pending.isEmpty()) {
+            lock.readLock().lock();
+        } else {
+            // Takes the read lock before giving up the write lock, so no other change slips in between
+            lock.writeLock().lock();
+            try {
+                applyPending();
+                lock.readLock().lock();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        try {
+            String firstSoundex = first == null ? null : soundex(first);
+            String lastSoundex = soundex(last);
+            // With a first name both names have to match, so the candidates are those close to both words
+            BitSet candidates = candidates(last, first == null);
+            if (first != null) {
+                candidates.and(candidates(first, false));
+            }
+            for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+                GuestName name = names.get(id);
+                if (name.liveStays + name.pastStays == 0) {
+                    continue;
+                }
+                double score;
+                if (first == null) {
+                    score = Math.max(similarity(last, lastSoundex, name.foldedLast, name.lastSoundex),
+                        similarity(last, lastSoundex, name.foldedFirst, name.firstSoundex));
+                } else {
+                    double firstScore = similarity(first, firstSoundex, name.foldedFirst, name.firstSoundex);
+                    double lastScore = similarity(last, lastSoundex, name.foldedLast, name.lastSoundex);
+                    score = Math.min(firstScore, lastScore) < MIN_SIMILARITY ? 0 : (firstScore + lastScore) / 2;
+                }
+                if (score >= MIN_SIMILARITY) {
+                    best.add(new Match(name, score));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Match> ranked = new ArrayList<>(best);
+        ranked.sort(worstFirst.reversed().thenComparing((Match match) -> match.lastName).thenComparing(match -> match.firstName));
+        return ranked;
+    }
+
+    // Names close enough to a word to be worth ranking: those within its edit budget by trigram count, and those that
+    // sound like it. Counts the word's trigram lists into one array, then collects the names reaching the count from the
+    // shortest lists that any of them must appear in. A short word can reach hundreds of thousands of names that merely
+    // share its first letters, so when capped only the MAX_RANKED or so sharing the most trigrams are kept. Names that
+    // left are never returned. The caller must hold the lock
+    private BitSet candidates(String word, boolean capped) {
+        long[] grams = trigrams(word);
+        List<int[]> lists = new ArrayList<>();
+        for (long gram : grams) {
+            int[] list = postings.get(gram);
+            if (list != null) {
+                lists.add(list);
+            }
+        }
+        // Sharing only the leading trigram means sharing only a first letter, which is left to the Soundex lists
+        int needed = Math.max(Math.min(2, grams.length), grams.length - brokenTrigrams(word));
+        BitSet found = new BitSet();
+        if (lists.size() >= needed) {
+            // A name is counted at most once per trigram of the word, however often that trigram repeats in it
+            int[] counts = spareCounts.poll();
+            if (counts == null || counts.length < names.size()) {
+                counts = new int[names.size() + (names.size() >> 3)];
+            }
+            for (int[] list : lists) {
+                for (int k = 1; k <= list[0]; k++) {
+                    counts[list[k]]++;
+                }
+            }
+            lists.sort(Comparator.comparingInt(list -> list[0]));
+            for (int[] list : lists.subList(0, lists.size() - needed + 1)) {
+                for (int k = 1; k <= list[0]; k++) {
+                    if (counts[list[k]] >= needed && names.get(list[k]) != null) {
+                        found.set(list[k]);
+                    }
+                }
+            }
+            if (capped && found.cardinality() > MAX_RANKED) {
+                int[] sharing = new int[lists.size() + 1];
+                for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+                    sharing[counts[id]]++;
+                }
+                int cutoff = lists.size();
+                int kept = sharing[cutoff];
+                while (cutoff > needed && kept + sharing[cutoff - 1] <= MAX_RANKED) {
+                    kept += sharing[--cutoff];
+                }
+                for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+                    if (counts[id] < cutoff) {
+                        found.clear(id);
+                    }
+                }
+            }
+            // Zeroes only the slots this word touched before handing the array on
+            for (int[] list : lists) {
+                for (int k = 1; k <= list[0]; k++) {
+                    counts[list[k]] = 0;
+                }
+            }
+            spareCounts.add(counts);
+        }
+        int[] alike = postings.get(soundexKey(word));
+        for (int i = 1; alike != null && i <= alike[0]; i++) {
+            if (names.get(alike[i]) != null) {
+                found.set(alike[i]);
+            }
+        }
+        return found;
+    }
+
+    // Changes a name's stay counts, adding it on its first stay and dropping it with its last. Only queues the change
+    // for the postings, since bookings call this holding their class lock
+    private void count(String firstName, String lastName, int live, int past) {
+        String key = GuestNameIndex.fold(firstName) + '\n' + GuestNameIndex.fold(lastName);
+        byName.compute(key, (k, name) -> {
+            if (name == null) {
+                name = new GuestName(k, firstName, lastName);
+                pending.add(name);
+            }
+            name.liveStays += live;
+            name.pastStays += past;
+            if (name.liveStays + name.pastStays > 0) {
+                return name;
+            }
+            pending.add(name);
+            return null;
+        });
+    }
+
+    // Indexes the queued names still in byName and nulls the ids of those that left it. A name that left never returns,
+    // so whichever order its changes are queued in, the last one applied sees its final state. Rebuilds the postings once
+    // half the ids are nulled. The caller must hold the write lock
+    private void applyPending() {
+        for (GuestName name = pending.poll(); name != null; name = pending.poll()) {
+            boolean held = byName.get(name.key) == name;
+            if (held && name.id < 0) {
+                index(name);
+            } else if (!held && name.id >= 0) {
+                names.set(name.id, null);
+                name.id = -1;
+                left++;
+            }
+        }
+        if (left > 0 && left >= names.size() / 2) {
+            List<GuestName> held = new ArrayList<>(names.size() - left);
+            for (GuestName name : names) {
+                if (name != null) {
+                    held.add(name);
+                }
+            }
+            names.clear();
+            postings.clear();
+            spareCounts.clear();
+            left = 0;
+            for (GuestName name : held) {
+                index(name);
+            }
+        }
+    }
+
+    // Gives the name the next id and adds it to the postings of its trigrams and Soundex codes. The caller must hold the
+    // write lock
+    private void index(GuestName name) {
+        name.id = names.size();
+        names.add(name);
+        Set<Long> keys = new HashSet<>();
+        for (String word : new String[] {name.foldedFirst, name.foldedLast}) {
+            for (long gram : trigrams(word)) {
+                keys.add(gram);
+            }
+            keys.add(soundexKey(word));
+        }
+        for (long postingKey : keys) {
+            int[] list = postings.get(postingKey);
+            if (list == null) {
+                list = new int[4];
+            } else if (list[0] + 1 == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+            }
+            list[++list[0]] = name.id;
+            postings.put(postingKey, list);
+        }
+    }
+
+    // Trigrams of the word padded with two spaces in front and one behind, packed into a long each
+    private static long[] trigrams(String word) {
+        String padded = "  " + word + " ";
+        long[] grams = new long[padded.length() - 2];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = (long) padded.charAt(i) << 32 | (long) padded.charAt(i + 1) << 16 | padded.charAt(i + 2);
+        }
+        return grams;
+    }
+
+    // Soundex codes are kept apart from trigrams by a set top bit
+    private static long soundexKey(String word) {
+        long key = 1L << 62;
+        String code = soundex(word);
+        for (int i = 0; i < code.length(); i++) {
+            key |= (long) code.charAt(i) << (16 * i);
+        }
+        return key;
+    }
+
+    // American Soundex: the first letter and the codes of the next three consonant sounds, padded with zeros
+    static String soundex(String word) {
+        StringBuilder code = new StringBuilder();
+        char previous = 0;
+        for (int i = 0; i < word.length() && code.length() < 4; i++) {
+            char c = Character.toLowerCase(word.charAt(i));
+            if (c < 'a' || c > 'z') {
+                continue;
+            }
+            char digit = "01230120022455012623010202".charAt(c - 'a');
+            if (code.length() == 0) {
+                code.append(Character.toUpperCase(c));
+            } else if (digit != '0' && digit != previous) {
+                code.append(digit);
+            }
+            // H and W do not separate letters with the same code; vowels do
+            if (c != 'h' && c != 'w') {
+                previous = digit;
+            }
+        }
+        while (code.length() > 0 && code.length() < 4) {
+            code.append('0');
+        }
+        return code.toString();
+    }
+
+    // Trigrams a name may differ from the word by and still be gathered: one typo or swapped pair of letters (up to four
+    // trigrams) in words of up to seven letters, and two typos (three each) in longer ones. Names further off in
+    // spelling, and typos in very short words, are only found if they sound alike
+    private static int brokenTrigrams(String word) {
+        return word.length() <= 7 ? 4 : 6;
+    }
+
+    // 1 for equal words, falling with the edit distance; names that sound alike are at least SOUNDS_ALIKE and a name
+    // starting with the word (a shortened query) at least 0.9
+    static double similarity(String word, String wordSoundex, String name, String nameSoundex) {
+        if (word.equals(name)) {
+            return 1;
+        }
+        if (name.startsWith(word)) {
+            return 0.9;
+        }
+        double floor = wordSoundex.equals(nameSoundex) && !wordSoundex.isEmpty() ? SOUNDS_ALIKE : 0;
+        int longest = Math.max(word.length(), name.length());
+        // Only distances that could still reach MIN_SIMILARITY are worked out in full
+        int distance = editDistance(word, name, (int) ((1 - MIN_SIMILARITY) * longest + 1e-9));
+        return Math.max(floor, 1 - (double) distance / longest);
+    }
+
+    // Insertions, deletions, substitutions and swaps of neighbouring letters needed to turn a into b, or more than limit
+    // once it is known to exceed it
+    static int editDistance(String a, String b, int limit) {
+        if (Math.abs(a.length() - b.length()) > limit) {
+            return limit + 1;
+        }
+        int[] beforeLast = new int[b.length() + 1];
+        int[] last = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            last[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, last[j] + 1), last[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    current[j] = Math.min(current[j], beforeLast[j - 2] + 1);
+                }
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            // A swap can reach back two rows, so stop only once both of the last two rows are over the limit
+            if (rowMin > limit && minOf(last) > limit) {
+                return limit + 1;
+            }
+            int[] recycled = beforeLast;
+            beforeLast = last;
+            last = current;
+            current = recycled;
+        }
+        return Math.min(last[b.length()], limit + 1);
+    }
+
+    private static int minOf(int[] row) {
+        int min = Integer.MAX_VALUE;
+        for (int value : row) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+}
+
+// Append-only history of stays that have left the live reservations: cancelled stays, and stays whose check-out date
+// has passed. Records go to numbered segment files and a new segment is started once the current one reaches the
+// segment size, so the live working set stays bounded however long the hotel runs. History queries scan the
+// segments from disk rather than holding any of it in memory.
+class StayArchive implements Closeable {
+    static final byte CANCELLED = 1;
+    static final byte CHECKED_OUT = 2;
+
+    // One stay as read back from the archive
+    static class ArchivedStay {
+        final byte status;
+        final int roomNumber;
+        final String firstName;
+        final String lastName;
+        final LocalDate checkIn;
+        final int lengthOfStay;
+        final Room.BedType bedType;
+        final int rate;
+        final LocalDate archivedOn;
+
+        ArchivedStay(byte status, int roomNumber, String firstName, String lastName, LocalDate checkIn, int lengthOfStay,
+                     Room.BedType bedType, int rate, LocalDate archivedOn) {
+            this.status = status;
+            this.roomNumber = roomNumber;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.checkIn = checkIn;
+            this.lengthOfStay = lengthOfStay;
+            this.bedType = bedType;
+            this.rate = rate;
+            this.archivedOn = archivedOn;
+        }
+
+        long revenue() {
+            return (long) rate * lengthOfStay;
+        }
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    // Per segment, the first check-in and last check-out epoch days of its checked-out stays, so a window of nights
+    // only reads the segments that can hold stays in it
+    private final Map<Long, long[]> stayedNights = new HashMap<>();
+    private long segment;
+    private long segmentSize;
+    private FileChannel channel;
+    private DataOutputStream out;
+
+    private StayArchive(Path dir, long segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Opens the archive in the directory, passing every stay already in it to the loader (which may be null).
+    // Everything after keep, a mark taken earlier, is dropped first: the journal replay archives those stays again.
+    // A record cut short by a crash at the end of the last segment is dropped too
+    public static StayArchive open(Path dir, long segmentBytes, long[] keep, Consumer<ArchivedStay> loader) throws IOException {
+        Files.createDirectories(dir);
+        StayArchive archive = new StayArchive(dir, segmentBytes);
+        for (long segment : archive.segments()) {
+            Path file = archive.segmentFile(segment);
+            if (segment > keep[0]) {
+                Files.delete(file);
+            } else if (segment == keep[0] && Files.size(file) > keep[1]) {
+                try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    truncate.truncate(keep[1]);
+                }
+            }
+        }
+        List<Long> segments = archive.segments();
+        long last = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        for (long segment : segments) {
+            long validLength = archive.scan(segment, stay -> {
+                archive.noteStay(segment, stay.status, stay.checkIn.toEpochDay(), stay.checkIn.toEpochDay() + stay.lengthOfStay);
+                if (loader != null) {
+                    loader.accept(stay);
+                }
+            });
+            if (segment == last && validLength < Files.size(archive.segmentFile(segment))) {
+                try (FileChannel truncate = FileChannel.open(archive.segmentFile(segment), StandardOpenOption.WRITE)) {
+                    truncate.truncate(validLength);
+                }
+            }
+        }
+        archive.startSegment(last);
+        return archive;
+    }
+
+    public synchronized void append(byte status, Reservation reservation, LocalDate archivedOn) {
+        Guest guest = reservation.getGuest();
+        try {
+            if (segmentSize >= segmentBytes) {
+                out.flush();
+                channel.force(false);
+                channel.close();
+                startSegment(segment + 1);
+            }
+            int before = out.size();
+            out.writeByte(status);
+            out.writeInt(reservation.getRoom().getRoomNumber());
+            out.writeLong(reservation.getCheckIn().toEpochDay());
+            out.writeInt(guest.getLengthOfStay());
+            out.writeByte(reservation.getBedType() == null ? -1 : reservation.getBedType().ordinal());
+            out.writeInt(reservation.getRate());
+            out.writeLong(archivedOn.toEpochDay());
+            out.writeUTF(guest.getFirstName());
+            out.writeUTF(guest.getLastName());
+            segmentSize += out.size() - before;
+            noteStay(segment, status, reservation.getCheckIn().toEpochDay(), reservation.getCheckOut().toEpochDay());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The segment and length written so far, buffered records included, to be passed back to open as keep
+    public synchronized long[] mark() {
+        return new long[] {segment, segmentSize};
+    }
+
+    // Writes buffered records to disk and waits for them to be durable
+    public synchronized void sync() throws IOException {
+        out.flush();
+        channel.force(false);
+    }
+
+    // Archived stays under the last name, or under every last name starting with the prefix if it ends with *, oldest first
+    public List<ArchivedStay> findByLastName(String lastName) throws IOException {
+        boolean prefix = lastName.endsWith("*");
+        String key = GuestNameIndex.fold(prefix ? lastName.substring(0, lastName.length() - 1) : lastName);
+        List<ArchivedStay> matches = new ArrayList<>();
+        synchronized (this) {
+            out.flush();
+        }
+        for (long segment : segments()) {
+            scan(segment, stay -> {
+                String name = GuestNameIndex.fold(stay.lastName);
+                if (prefix ? name.startsWith(key) : name.equals(key)) {
+                    matches.add(stay);
+                }
+            });
+        }
+        return matches;
+    }
+
+    // Passes every checked-out stay with at least one night in [from, to) to the consumer, oldest segment first
+    public void forEachStayIn(LocalDate from, LocalDate to, Consumer<ArchivedStay> consumer) throws IOException {
+        long start = from.toEpochDay();
+        long end = to.toEpochDay();
+        List<Long> overlapping = new ArrayList<>();
+        synchronized (this) {
+            out.flush();
+            for (Map.Entry<Long, long[]> nights : stayedNights.entrySet()) {
+                if (nights.getValue()[0] < end && nights.getValue()[1] > start) {
+                    overlapping.add(nights.getKey());
+                }
+            }
+        }
+        Collections.sort(overlapping);
+        for (long segment : overlapping) {
+            scan(segment, stay -> {
+                long checkIn = stay.checkIn.toEpochDay();
+                if (stay.status == CHECKED_OUT && checkIn < end && checkIn + stay.lengthOfStay > start) {
+                    consumer.accept(stay);
+                }
+            });
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    private void noteStay(long segment, byte status, long checkIn, long checkOut) {
+        if (status == CHECKED_OUT) {
+            long[] nights = stayedNights.computeIfAbsent(segment, s -> new long[] {Long.MAX_VALUE, Long.MIN_VALUE});
+            nights[0] = Math.min(nights[0], checkIn);
+            nights[1] = Math.max(nights[1], checkOut);
+        }
+    }
+
+    // Reads every whole record of the segment, returning the length of the data read
+    private long scan(long segment, Consumer<ArchivedStay> consumer) throws IOException {
+        Path file = segmentFile(segment);
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            long length = Files.size(file);
+            while (validLength < length) {
+                ArchivedStay stay;
+                int recordLength;
+                try {
+                    byte status = in.readByte();
+                    int roomNumber = in.readInt();
+                    LocalDate checkIn = LocalDate.ofEpochDay(in.readLong());
+                    int lengthOfStay = in.readInt();
+                    byte bed = in.readByte();
+                    int rate = in.readInt();
+                    LocalDate archivedOn = LocalDate.ofEpochDay(in.readLong());
+                    String firstName = in.readUTF();
+                    String lastName = in.readUTF();
+                    stay = new ArchivedStay(status, roomNumber, firstName, lastName, checkIn, lengthOfStay,
+                        bed < 0 ? null : Room.BedType.values()[bed], rate, archivedOn);
+                    recordLength = 1 + 4 + 8 + 4 + 1 + 4 + 8 + utfLength(firstName) + utfLength(lastName);
+                } catch (EOFException e) {
+                    break;
+                }
+                consumer.accept(stay);
+                validLength += recordLength;
+            }
+        }
+        return validLength;
+    }
+
+    private static int utfLength(String value) {
+        int length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    private void startSegment(long segment) throws IOException {
+        this.segment = segment;
+        this.channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.segmentSize = channel.size();
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+    }
+
+    private List<Long> segments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "archive-*.seg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring("archive-".length(), name.length() - ".seg".length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentFile(long segment) {
+        return dir.resolve("archive-" + segment + ".seg");
+    }
+}
+
+// One change to the hotel's bookings or rooms, as published on the EventBus. Immutable; fields that do not apply to
+// the type are null, or 0 for numbers
+final class ReservationEvent {
+    enum Type {
+        BOOKED,
+        CANCELLED,
+        CHECKED_OUT,
+        BED_CHANGED, // the room was set up with a different bed type for a new stay
+        ROOM_OCCUPIED, // the room took its first stay and is no longer available
+        ROOM_FREED // the room's last stay went and it is available again
+    }
+
+    final long sequence;
+    final Type type;
+    final long timeMillis;
+    final int roomNumber;
+    final Room.RoomClass roomClass;
+    final Room.BedType bedType;
+    final long reservationId;
+    final String firstName;
+    final String lastName;
+    final LocalDate checkIn;
+    final LocalDate checkOut;
+    final int rate;
+
+    ReservationEvent(long sequence, Type type, Room room, Reservation reservation) {
+        this.sequence = sequence;
+        this.type = type;
+        this.timeMillis = System.currentTimeMillis();
+        this.roomNumber = room.getRoomNumber();
+        this.roomClass = room.getRoomClass();
+        this.bedType = reservation == null ? room.getBedType() : reservation.getBedType();
+        this.reservationId = reservation == null ? 0 : reservation.getId();
+        this.firstName = reservation == null ? null : reservation.getGuest().getFirstName();
+        this.lastName = reservation == null ? null : reservation.getGuest().getLastName();
+        this.checkIn = reservation == null ? null : reservation.getCheckIn();
+        this.checkOut = reservation == null ? null : reservation.getCheckOut();
+        this.rate = reservation == null ? 0 : reservation.getRate();
+    }
+
+    // One line of JSON, leaving out the fields that do not apply
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"sequence\":").append(sequence)
+            .append(",\"type\":\"").append(type)
+            .append("\",\"time\":").append(timeMillis)
+            .append(",\"roomNumber\":").append(roomNumber)
+            .append(",\"roomClass\":\"").append(roomClass).append('"');
+        if (bedType != null) {
+            json.append(",\"bedType\":\"").append(bedType).append('"');
+        }
+        if (reservationId != 0) {
+            json.append(",\"reservationId\":").append(reservationId)
+                .append(",\"firstName\":").append(Json.quote(firstName))
+                .append(",\"lastName\":").append(Json.quote(lastName))
+                .append(",\"checkIn\":\"").append(checkIn)
+                .append("\",\"checkOut\":\"").append(checkOut)
+                .append("\",\"rate\":").append(rate);
+        }
+        return json.append('}').toString();
+    }
+}
+
+// In-process stream of ReservationEvents for housekeeping, billing and the data warehouse. Publishers claim a sequence
+// and write the event into a fixed ring, never waiting on anyone, so the booking path cannot be held up by a consumer.
+// Each subscriber reads the ring on its own daemon thread from the point it subscribed and is handed the events in
+// batches, in sequence order. A subscriber that falls more than the ring's capacity behind has the oldest events
+// overwritten under it: it skips ahead and is told how many it missed, rather than slowing the hotel down
+class EventBus implements Closeable {
+    interface Subscriber {
+        void onEvents(List<ReservationEvent> events);
+
+        // Called when count events were overwritten before the subscriber got to them
+        default void onMissed(long count) {
+        }
+    }
+
+    private static final int MAX_BATCH = 256;
+
+    private final AtomicReferenceArray<ReservationEvent> ring;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    // capacity must be a power of two
+    public EventBus(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Event buffer capacity must be a power of two, not " + capacity);
+        }
+        ring = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    // Publishes the change; costs nothing while there are no subscribers. A subscriber asleep for want of events is
+    // woken by the first event after it went to sleep, and only by that one
+    public void publish(ReservationEvent.Type type, Room room, Reservation reservation) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        long sequence = next.getAndIncrement();
+        ring.set((int) (sequence & mask), new ReservationEvent(sequence, type, room, reservation));
+        for (Subscription subscription : subscriptions) {
+            if (subscription.asleep.get() && subscription.asleep.getAndSet(false)) {
+                LockSupport.unpark(subscription.thread);
+            }
+        }
+    }
+
+    // Delivers every event published from now on to the subscriber on a thread of its own. Closing the subscription
+    // delivers what is already published, then closes the subscriber too if it is Closeable
+    public Subscription subscribe(String name, Subscriber subscriber) {
+        Subscription subscription = new Subscription(name, subscriber);
+        // Listed before the start is read, so no event after the start can be skipped as unsubscribed
+        subscriptions.add(subscription);
+        subscription.start(next.get());
+        return subscription;
+    }
+
+    // Closes every subscription, delivering what is already published
+    @Override
+    public void close() {
+        for (Subscription subscription : subscriptions) {
+            subscription.close();
+        }
+    }
+
+    class Subscription implements Closeable {
+        private final String name;
+        private final Subscriber subscriber;
+        private final Thread thread;
+        private volatile boolean running = true;
+        // Set by the delivery thread before it parks with no timeout, cleared by the publisher that wakes it
+        private final AtomicBoolean asleep = new AtomicBoolean();
+        private long cursor; // next sequence to deliver, owned by the delivery thread
+
+        private Subscription(String name, Subscriber subscriber) {
+            this.name = name;
+            this.subscriber = subscriber;
+            this.thread = new Thread(this::deliver, "events-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        private void start(long from) {
+            cursor = from;
+            thread.start();
+        }
+
+        @Override
+        public void close() {
+            if (!subscriptions.remove(this)) {
+                return;
+            }
+            running = false;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (subscriber instanceof Closeable) {
+                try {
+                    ((Closeable) subscriber).close();
+                } catch (IOException e) {
+                    System.err.println("Could not close event subscriber " + name + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private void deliver() {
+            int idle = 0;
+            while (true) {
+                // Read before polling, so the last pass still picks up everything published before close
+                boolean stopping = !running;
+                List<ReservationEvent> batch = new ArrayList<>();
+                long skipped = 0;
+                while (batch.size() < MAX_BATCH) {
+                    ReservationEvent event = ring.get((int) (cursor & mask));
+                    if (event == null || event.sequence < cursor) {
+                        break; // not published yet
+                    }
+                    if (event.sequence > cursor) {
+                        // Lapped: everything older than one ring behind the publishers may be gone
+                        long resume = Math.max(cursor + 1, next.get() - mask);
+                        skipped += resume - cursor;
+                        cursor = resume;
+                        continue;
+                    }
+                    batch.add(event);
+                    cursor++;
+                }
+                try {
+                    if (skipped > 0) {
+                        subscriber.onMissed(skipped);
+                    }
+                    if (!batch.isEmpty()) {
+                        subscriber.onEvents(batch);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Event subscriber " + name + " failed: " + e);
+                }
+                if (!batch.isEmpty() || skipped > 0) {
+                    idle = 0;
+                } else if (stopping) {
+                    return;
+                } else if (idle++ < 100) {
+                    LockSupport.parkNanos(50_000); // a burst of bookings usually brings more within microseconds
+                } else {
+                    sleep();
+                }
+            }
+        }
+
+        // Parks until a publisher or close wakes the thread. The event at the cursor is looked at again after asleep
+        // is set, as the publisher sets the event before looking at asleep, so one of the two always sees the other
+        private void sleep() {
+            asleep.set(true);
+            ReservationEvent event = ring.get((int) (cursor & mask));
+            if (event != null && event.sequence >= cursor) {
+                asleep.set(false);
+                return;
+            }
+            while (asleep.get() && running) {
+                LockSupport.park(this);
+            }
+            asleep.set(false);
+        }
+    }
+}
+
+// Subscriber appending each event to a file as a line of JSON, writing and flushing once per batch
+class EventLogWriter implements EventBus.Subscriber, Closeable {
+    private final Writer out;
+
+    public EventLogWriter(Path file) throws IOException {
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void onEvents(List<ReservationEvent> events) {
+        try {
+            for (ReservationEvent event : events) {
+                out.write(event.toJson());
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void onMissed(long count) {
+        System.err.println("Event log fell behind and missed " + count + " events");
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
+
+// Fixed-width table writer that pads cells straight into a reusable line buffer and streams whole lines to a
+// buffered Writer, so large listings avoid a format parse and a console flush per row. Cells are left-aligned,
+// padded to their column width and separated by one space, the same layout as the "%-15s" printf tables
+class ReportWriter implements Flushable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Writer out;
+    private final int[] widths;
+    private final StringBuilder line = new StringBuilder(256);
+    private int column;
+
+    public ReportWriter(Writer out, int... widths) {
+        this.out = out;
+        this.widths = widths;
+    }
+
+    // Writes to standard output; flush, rather than close, when the report is done
+    public static ReportWriter console(int... widths) {
+        return new ReportWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE), widths);
+    }
+
+    public static ReportWriter file(Path file, int... widths) throws IOException {
+        return new ReportWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), widths);
+    }
+
+    public static ReportWriter channel(WritableByteChannel channel, int... widths) {
+        return new ReportWriter(new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), BUFFER_SIZE), widths);
+    }
+
+    public ReportWriter cell(String value) {
+        int start = startCell();
+        line.append(value);
+        return pad(start);
+    }
+
+    public ReportWriter cell(Object value) {
+        return cell(String.valueOf(value));
+    }
+
+    public ReportWriter cell(long value) {
+        int start = startCell();
+        line.append(value);
+        return pad(start);
+    }
+
+    // Ends the current row and hands it to the writer
+    public void endRow() throws IOException {
+        line.append(System.lineSeparator());
+        out.append(line);
+        line.setLength(0);
+        column = 0;
+    }
+
+    // Writes a line of free text, such as a title
+    public void text(String text) throws IOException {
+        out.write(text);
+        out.write(System.lineSeparator());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private int startCell() {
+        if (column > 0) {
+            line.append(' ');
+        }
+        return line.length();
+    }
+
+    private ReportWriter pad(int start) {
+        int width = widths[Math.min(column, widths.length - 1)];
+        for (int i = line.length() - start; i < width; i++) {
+            line.append(' ');
+        }
+        column++;
+        return this;
+    }
+}
+
+// Lock-free latency histogram with log-linear buckets in the style of HdrHistogram: values below 32 ns get a bucket
+// each, and every power of two above that is split into 32 buckets, so any recorded value is kept to within ~3%.
+// Recording is a handful of atomic adds with no allocation
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // The highest value of the bucket holding the p-th quantile (0 < p <= 1), or 0 if nothing was recorded
+    public long percentile(double p) {
+        long count = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = bucket & (SUB_BUCKETS - 1);
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
+
+// Call counts by outcome and latency histograms for every booking operation, per room class where the operation has one.
+// Readable at any time through JMX (see register) or as a plain-text dump
+class HotelMetrics implements HotelManagementSystem.MetricsMXBean {
+    enum Operation {
+        RESERVE,
+        GROUP_RESERVE,
+        CANCEL,
+        AVAILABILITY,
+        QUOTE,
+        SEARCH,
+        AVAILABLE_ROOMS_REPORT,
+        ROOM_DETAILS_REPORT,
+        RESERVATIONS_REPORT,
+        ALPHABETICAL_REPORT,
+        INCOME_REPORT,
+        ANALYTICS_REPORT,
+        PROMOTE // a waitlisted stay booked when a cancellation freed a room
+    }
+
+    enum Outcome {
+        OK,
+        SOLD_OUT, // no room of the class was free for the stay
+        OUT_OF_RANGE, // the stay started in the past or ended beyond the booking horizon
+        BED_NOT_OFFERED, // no room of the class can be set up with the bed type
+        NOT_FOUND, // no reservation to cancel
+        WAITLISTED // sold out, so the stay was put on the waitlist
+    }
+
+    // One extra slot after the room classes holds operations that are not for a single class
+    private static final int CLASSES = Room.RoomClass.values().length + 1;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length * CLASSES];
+    private final LongAdder[] counts = new LongAdder[latencies.length * Outcome.values().length];
+
+    public HotelMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    // Records one call that started at startNanos (from System.nanoTime); roomClass may be null
+    public void record(Operation operation, Room.RoomClass roomClass, Outcome outcome, long startNanos) {
+        int cell = cell(operation, roomClass);
+        latencies[cell].record(System.nanoTime() - startNanos);
+        counts[cell * Outcome.values().length + outcome.ordinal()].increment();
+    }
+
+    public long count(Operation operation, Room.RoomClass roomClass, Outcome outcome) {
+        return counts[cell(operation, roomClass) * Outcome.values().length + outcome.ordinal()].sum();
+    }
+
+    public LatencyHistogram latency(Operation operation, Room.RoomClass roomClass) {
+        return latencies[cell(operation, roomClass)];
+    }
+
+    // Registers these metrics with the platform MBean server under HotelManagementSystem:type=Metrics
+    public void register() {
+        registerAs("HotelManagementSystem:type=Metrics");
+    }
+
+    // Registers the metrics of one property of a portfolio under HotelManagementSystem:type=Metrics,property=<name>
+    public void register(String property) {
+        registerAs("HotelManagementSystem:type=Metrics,property=" + ObjectName.quote(property));
+    }
+
+    private void registerAs(String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Operation operation : Operation.values()) {
+            for (int c = 0; c < CLASSES; c++) {
+                for (Outcome outcome : Outcome.values()) {
+                    long count = counts[(operation.ordinal() * CLASSES + c) * Outcome.values().length + outcome.ordinal()].sum();
+                    if (count > 0) {
+                        values.put(label(operation, c) + "." + outcome, count);
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Micros() {
+        return latencySummary(0.50);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Micros() {
+        return latencySummary(0.99);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMaxMicros() {
+        return latencySummary(1.0);
+    }
+
+    @Override
+    public String dump() {
+        StringWriter out = new StringWriter();
+        try {
+            dump(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    // Writes one line per metric in the Prometheus text format, skipping operations that have not been called
+    public void dump(Writer out) throws IOException {
+        for (Operation operation : Operation.values()) {
+            for (int c = 0; c < CLASSES; c++) {
+                LatencyHistogram histogram = latencies[operation.ordinal() * CLASSES + c];
+                if (histogram.count() == 0) {
+                    continue;
+                }
+                String labels = "operation=\"" + operation.name().toLowerCase(Locale.ROOT) + "\""
+                    + (c < CLASSES - 1 ? ",roomClass=\"" + Room.RoomClass.values()[c] + "\"" : "");
+                for (Outcome outcome : Outcome.values()) {
+                    long count = counts[(operation.ordinal() * CLASSES + c) * Outcome.values().length + outcome.ordinal()].sum();
+                    if (count > 0) {
+                        out.write("hotel_operations_total{" + labels + ",outcome=\"" + outcome.name().toLowerCase(Locale.ROOT) + "\"} " + count + "\n");
+                    }
+                }
+                out.write(String.format(Locale.ROOT, "hotel_operation_latency_micros{%s,quantile=\"0.5\"} %.1f%n", labels, histogram.percentile(0.50) / 1e3));
+                out.write(String.format(Locale.ROOT, "hotel_operation_latency_micros{%s,quantile=\"0.99\"} %.1f%n", labels, histogram.percentile(0.99) / 1e3));
+                out.write(String.format(Locale.ROOT, "hotel_operation_latency_micros{%s,quantile=\"1\"} %.1f%n", labels, histogram.max() / 1e3));
+                out.write(String.format(Locale.ROOT, "hotel_operation_latency_micros_mean{%s} %.1f%n", labels, histogram.mean() / 1e3));
+            }
+        }
+    }
+
+    private Map<String, Double> latencySummary(double p) {
+        Map<String, Double> values = new TreeMap<>();
+        for (Operation operation : Operation.values()) {
+            for (int c = 0; c < CLASSES; c++) {
+                LatencyHistogram histogram = latencies[operation.ordinal() * CLASSES + c];
+                if (histogram.count() > 0) {
+                    values.put(label(operation, c), (p >= 1.0 ? histogram.max() : histogram.percentile(p)) / 1e3);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static int cell(Operation operation, Room.RoomClass roomClass) {
+        return operation.ordinal() * CLASSES + (roomClass == null ? CLASSES - 1 : roomClass.ordinal());
+    }
+
+    private static String label(Operation operation, int c) {
+        return c < CLASSES - 1 ? operation + "." + Room.RoomClass.values()[c] : operation.toString();
+    }
+}
+
+// Minimal reader and writer for flat JSON objects of string, number and boolean values, as used by the
+// NDJSON import format and the HTTP API
+class Json {
+    // Parses {"key": value, ...} into a map of raw string values; nested objects and arrays are kept as their JSON text
+    public static Map<String, String> parseObject(String text) {
+        Map<String, String> values = new LinkedHashMap<>();
+        int[] pos = {skipSpace(text, 0)};
+        expect(text, pos, '{');
+        if (peek(text, pos) == '}') {
+            pos[0]++;
+            return values;
+        }
+        while (true) {
+            String key = readString(text, pos);
+            expect(text, pos, ':');
+            char first = peek(text, pos);
+            String value = first == '"' ? readString(text, pos) : first == '{' || first == '[' ? readNested(text, pos) : readLiteral(text, pos);
+            values.put(key, value);
+            char next = peek(text, pos);
+            pos[0]++;
+            if (next == '}') {
+                return values;
+            }
+            if (next != ',') {
+                throw new IllegalArgumentException("Expected , or } at position " + (pos[0] - 1));
+            }
+        }
+    }
+
+    // Parses [{...}, ...] into one map per object, as parseObject does
+    public static List<Map<String, String>> parseArray(String text) {
+        List<Map<String, String>> objects = new ArrayList<>();
+        int[] pos = {skipSpace(text, 0)};
+        expect(text, pos, '[');
+        if (peek(text, pos) == ']') {
+            pos[0]++;
+            return objects;
+        }
+        while (true) {
+            if (peek(text, pos) != '{') {
+                throw new IllegalArgumentException("Expected { at position " + pos[0]);
+            }
+            objects.add(parseObject(readNested(text, pos)));
+            char next = peek(text, pos);
+            pos[0]++;
+            if (next == ']') {
+                return objects;
+            }
+            if (next != ',') {
+                throw new IllegalArgumentException("Expected , or ] at position " + (pos[0] - 1));
+            }
+        }
+    }
+
+    public static String quote(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    private static String readString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder value = new StringBuilder();
+        while (pos[0] < text.length()) {
+            char c = text.charAt(pos[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\') {
+                if (pos[0] >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(pos[0]++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        if (pos[0] + 4 > text.length()) {
+                            throw new IllegalArgumentException("Bad \\u escape");
+                        }
+                        value.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                        pos[0] += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    // Returns the text of the object or array starting at pos, skipping over brackets inside strings
+    private static String readNested(String text, int[] pos) {
+        int start = pos[0];
+        int depth = 0;
+        boolean inString = false;
+        while (pos[0] < text.length()) {
+            char c = text.charAt(pos[0]++);
+            if (inString) {
+                if (c == '\\') {
+                    pos[0]++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if ((c == '}' || c == ']') && --depth == 0) {
+                return text.substring(start, pos[0]);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated " + text.charAt(start) + " at position " + start);
+    }
+
+    private static String readLiteral(String text, int[] pos) {
+        int start = pos[0];
+        while (pos[0] < text.length() && ",}".indexOf(text.charAt(pos[0])) < 0) {
+            pos[0]++;
+        }
+        String literal = text.substring(start, pos[0]).trim();
+        if (literal.isEmpty()) {
+            throw new IllegalArgumentException("Missing value at position " + start);
+        }
+        return literal.equals("null") ? null : literal;
+    }
+
+    private static char peek(String text, int[] pos) {
+        pos[0] = skipSpace(text, pos[0]);
+        if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        return text.charAt(pos[0]);
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (peek(text, pos) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at position " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static int skipSpace(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
+
+// One line of a batch import: a booking or a cancellation, or the reason the line could not be read
+class BatchOperation {
+    final long lineNumber;
+    final String line;
+    final boolean booking;
+    String firstName;
+    String lastName;
+    LocalDate checkIn; // null on a cancellation means the earliest stay on the room
+    int lengthOfStay;
+    Room.RoomClass roomClass;
+    Room.BedType bedType;
+    int roomNumber;
+    String error;
+
+    BatchOperation(long lineNumber, String line, boolean booking) {
+        this.lineNumber = lineNumber;
+        this.line = line;
+        this.booking = booking;
+    }
+}
+
+// Reads a file of bookings and cancellations on a background thread and hands them over in batches.
+// Lines are either CSV:
+//   book,<first name>,<last name>,<check-in YYYY-MM-DD or blank for today>,<nights>,<ROOM_CLASS>,<BED_TYPE>
+//   cancel,<room number>[,<check-in>]
+// or NDJSON objects with the fields op, firstName, lastName, checkIn, lengthOfStay, roomClass, bedType and roomNumber.
+// Blank lines, lines starting with # and a CSV header starting with "op," are skipped
+class BatchImport {
+    static final int BATCH_SIZE = 1024;
+    private static final List<BatchOperation> END = new ArrayList<>();
+
+    private final BlockingQueue<List<BatchOperation>> batches = new ArrayBlockingQueue<>(16);
+    private volatile IOException readFailure;
+
+    // Starts parsing the file on its own thread
+    public static BatchImport start(Path input) {
+        BatchImport batchImport = new BatchImport();
+        Thread reader = new Thread(() -> batchImport.read(input), "batch-import-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return batchImport;
+    }
+
+    // The next batch of parsed lines, or null once the whole file has been handed over
+    public List<BatchOperation> nextBatch() throws IOException {
+        List<BatchOperation> batch;
+        try {
+            batch = batches.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing", e);
+        }
+        if (batch == END) {
+            if (readFailure != null) {
+                throw readFailure;
+            }
+            return null;
+        }
+        return batch;
+    }
+
+    private void read(Path input) {
+        boolean finished = false;
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+            List<BatchOperation> batch = new ArrayList<>(BATCH_SIZE);
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.toLowerCase(Locale.ROOT).startsWith("op,")) {
+                    continue;
+                }
+                batch.add(parse(lineNumber, trimmed));
+                if (batch.size() == BATCH_SIZE) {
+                    batches.put(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                batches.put(batch);
+            }
+            finished = true;
+        } catch (IOException | UncheckedIOException e) {
+            readFailure = e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : (IOException) e;
+        } catch (InterruptedException e) {
+            readFailure = new IOException("Interrupted while reading " + input, e);
+        } catch (RuntimeException e) {
+            readFailure = new IOException("Import stopped reading " + input + ": " + e, e);
+        } finally {
+            if (!finished && readFailure == null) {
+                readFailure = new IOException("Import stopped reading " + input + " before the end");
+            }
+            // Whatever happened, the importing thread must be told that nothing more is coming. put rather than offer:
+            // the queue may be full while the importing thread catches up
+            try {
+                batches.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static BatchOperation parse(long lineNumber, String line) {
+        Map<String, String> fields = new HashMap<>();
+        try {
+            if (line.startsWith("{")) {
+                fields = Json.parseObject(line);
+            } else {
+                List<String> cells = splitCsv(line);
+                fields.put("op", cells.get(0));
+                if (cells.get(0).trim().equalsIgnoreCase("cancel")) {
+                    fields.put("roomNumber", cell(cells, 1));
+                    fields.put("checkIn", cell(cells, 2));
+                } else {
+                    fields.put("firstName", cell(cells, 1));
+                    fields.put("lastName", cell(cells, 2));
+                    fields.put("checkIn", cell(cells, 3));
+                    fields.put("lengthOfStay", cell(cells, 4));
+                    fields.put("roomClass", cell(cells, 5));
+                    fields.put("bedType", cell(cells, 6));
+                }
+            }
+        } catch (RuntimeException e) {
+            BatchOperation failed = new BatchOperation(lineNumber, line, false);
+            failed.error = "Unreadable line: " + e.getMessage();
+            return failed;
+        }
+
+        String op = fields.getOrDefault("op", "").trim().toLowerCase(Locale.ROOT);
+        BatchOperation operation = new BatchOperation(lineNumber, line, op.equals("book"));
+        try {
+            String checkIn = fields.get("checkIn");
+            if (op.equals("book")) {
+                operation.firstName = required(fields, "firstName");
+                operation.lastName = required(fields, "lastName");
+                operation.checkIn = checkIn == null || checkIn.isBlank() ? LocalDate.now() : LocalDate.parse(checkIn.trim());
+                operation.lengthOfStay = Integer.parseInt(required(fields, "lengthOfStay").trim());
+                operation.roomClass = Room.RoomClass.valueOf(required(fields, "roomClass").trim().toUpperCase(Locale.ROOT));
+                operation.bedType = Room.BedType.valueOf(required(fields, "bedType").trim().toUpperCase(Locale.ROOT));
+                if (operation.lengthOfStay < 1) {
+                    operation.error = "The minimum length of stay is 1 day";
+                }
+            } else if (op.equals("cancel")) {
+                operation.roomNumber = Integer.parseInt(required(fields, "roomNumber").trim());
+                operation.checkIn = checkIn == null || checkIn.isBlank() ? null : LocalDate.parse(checkIn.trim());
+            } else {
+                operation.error = "Unknown operation '" + op + "', expected book or cancel";
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            operation.error = "Invalid value: " + e.getMessage();
+        }
+        return operation;
+    }
+
+    private static String required(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("missing " + name);
+        }
+        return value;
+    }
+
+    private static String cell(List<String> cells, int index) {
+        return index < cells.size() ? cells.get(index) : null;
+    }
+
+    // Splits a CSV line, honouring double-quoted cells with "" as an escaped quote
+    private static List<String> splitCsv(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cell.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    cell.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+}
+
+// JSON-over-HTTP front end for the channel manager and website, served with the JDK's built-in HTTP server.
+// Each request runs on its own virtual thread where the JDK has them (21+), so thousands of slow clients do not
+// need thousands of platform threads; older JDKs fall back to a growing pool of daemon threads.
+//   GET    /availability?roomClass=DELUXE[&checkIn=YYYY-MM-DD][&nights=1]
+//   GET    /quote?roomClass=DELUXE&bedType=QUEEN_SIZE[&checkIn=YYYY-MM-DD][&nights=1]
+//   POST   /reservations        {"firstName", "lastName", "lengthOfStay", "roomClass", "bedType"[, "checkIn"][, "waitlist"]}
+//   POST   /group-reservations  {"roomClass"[, "checkIn"][, "preferAdjacent"], "guests": [{"firstName", "lastName", "lengthOfStay", "bedType"}, ...]}
+//   DELETE /reservations?roomNumber=101[&checkIn=YYYY-MM-DD]
+//   GET    /guests?lastName=Smith (or Smi* for a prefix)
+//   GET    /guests/search?q=jon+smyth[&limit=20] (ranked, typo-tolerant, over current and past guests)
+//   GET    /history?lastName=Smith (cancelled and checked-out stays; Smi* for a prefix)
+//   GET    /income
+//   GET    /analytics[?from=YYYY-MM-DD][&nights=30]
+//   GET    /metrics (plain text)
+// Serving a portfolio, every endpoint above is under /properties/<name>, plus the fan-out queries
+//   GET    /portfolio/availability?roomClass=SUPERIOR[&rooms=1][&checkIn=YYYY-MM-DD][&nights=1]
+//   GET    /portfolio/income
+class BookingApi implements Closeable {
+    private static final int MAX_BODY_BYTES = 1 << 20;
+    private static final int MAX_QUEUED_REQUESTS = 1024; // beyond the ones being handled, before answering 503
+    private static final int MAX_ANALYTICS_NIGHTS = 3660; // ten years
+
+    // Exactly one of these is set
+    private final HotelManagementSystem system;
+    private final Portfolio portfolio;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private BookingApi(HotelManagementSystem system, Portfolio portfolio, HttpServer server, ExecutorService executor) {
+        this.system = system;
+        this.portfolio = portfolio;
+        this.server = server;
+        this.executor = executor;
+    }
+
+    // Starts serving on the port; 0 picks a free one
+    public static BookingApi start(HotelManagementSystem system, int port) throws IOException {
+        return start(system, null, port);
+    }
+
+    public static BookingApi start(Portfolio portfolio, int port) throws IOException {
+        return start(null, portfolio, port);
+    }
+
+    // The server writes headers and body separately, so without TCP_NODELAY every response waits on a delayed ACK.
+    // The JDK reads the setting once, when the first server is created, so this only works from main before then;
+    // programs embedding the API pass -Dsun.net.httpserver.nodelay=true instead
+    static void enableNoDelay() {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    // The server's own dispatcher thread only hands each exchange to the request threads, answering 503 itself once
+    // they and their queue are full
+    private static BookingApi start(HotelManagementSystem system, Portfolio portfolio, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+        BookingApi api = new BookingApi(system, portfolio, server, requestExecutor());
+        server.createContext("/", api::dispatch);
+        server.start();
+        return api;
+    }
+
+    // A fixed pool of daemon threads with a bounded queue. Most of a booking's time is spent waiting for the journal's
+    // group commit, so there are several threads per core to keep each fsync shared by many requests
+    private static ExecutorService requestExecutor() {
+        int threads = 4 * Runtime.getRuntime().availableProcessors();
+        AtomicLong count = new AtomicLong();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS), r -> {
+            Thread thread = new Thread(r, "booking-api-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        try {
+            executor.execute(() -> {
+                try {
+                    handle(exchange);
+                } catch (IOException e) {
+                    exchange.close(); // the client went away; there is no one to answer
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, 503, error("The server is busy; try again shortly"));
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> params = query(exchange.getRequestURI().getRawQuery());
+            HotelManagementSystem system = this.system;
+            if (portfolio != null) {
+                if (path.startsWith("/portfolio/")) {
+                    handlePortfolio(exchange, method, path, params);
+                    return;
+                }
+                // /properties/<name>/<endpoint> runs the endpoint against that property
+                int slash = path.indexOf('/', "/properties/".length());
+                system = path.startsWith("/properties/") && slash > 0 ? portfolio.property(path.substring("/properties/".length(), slash)) : null;
+                if (system == null) {
+                    send(exchange, 404, error("No such property or endpoint: " + path));
+                    return;
+                }
+                path = path.substring(slash);
+            }
+            switch (path) {
+                case "/availability":
+                    if (allowMethod(exchange, method, "GET")) {
+                        availability(system, exchange, params);
+                    }
+                    break;
+                case "/quote":
+                    if (allowMethod(exchange, method, "GET")) {
+                        quote(system, exchange, params);
+                    }
+                    break;
+                case "/reservations":
+                    if (method.equals("DELETE")) {
+                        cancel(system, exchange, params);
+                    } else if (allowMethod(exchange, method, "POST", "DELETE")) {
+                        String body = body(exchange);
+                        if (body != null) {
+                            reserve(system, exchange, Json.parseObject(body));
+                        }
+                    }
+                    break;
+                case "/group-reservations":
+                    if (allowMethod(exchange, method, "POST")) {
+                        String body = body(exchange);
+                        if (body != null) {
+                            reserveGroup(system, exchange, Json.parseObject(body));
+                        }
+                    }
+                    break;
+                case "/guests":
+                    if (allowMethod(exchange, method, "GET")) {
+                        search(system, exchange, params);
+                    }
+                    break;
+                case "/guests/search":
+                    if (allowMethod(exchange, method, "GET")) {
+                        fuzzySearch(system, exchange, params);
+                    }
+                    break;
+                case "/history":
+                    if (allowMethod(exchange, method, "GET")) {
+                        history(system, exchange, params);
+                    }
+                    break;
+                case "/income":
+                    if (allowMethod(exchange, method, "GET")) {
+                        income(system, exchange);
+                    }
+                    break;
+                case "/analytics":
+                    if (allowMethod(exchange, method, "GET")) {
+                        analytics(system, exchange, params);
+                    }
+                    break;
+                case "/metrics":
+                    if (allowMethod(exchange, method, "GET")) {
+                        metrics(system, exchange);
+                    }
+                    break;
+                default:
+                    send(exchange, 404, error("No such endpoint: " + path));
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            send(exchange, 400, error("Invalid request: " + e.getMessage()));
+        } catch (RuntimeException e) {
+            // The details are for the log only; clients learn nothing of the internals
+            System.err.println("Booking API failed on " + exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + ":");
+            e.printStackTrace();
+            send(exchange, 500, error("Internal error"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void availability(HotelManagementSystem system, HttpExchange exchange, Map<String, String> params) throws IOException {
+        Room.RoomClass roomClass = roomClass(required(params, "roomClass"));
+        LocalDate checkIn = date(params.get("checkIn"), LocalDate.now());
+        int nights = nights(params, 1, HotelManagementSystem.HORIZON_NIGHTS);
+        int available = system.countAvailableRooms(roomClass, checkIn, checkIn.plusDays(nights));
+        send(exchange, 200, "{\"roomClass\":\"" + roomClass + "\",\"checkIn\":\"" + checkIn + "\",\"nights\":" + nights
+            + ",\"available\":" + available + "}");
+    }
+
+    private static void quote(HotelManagementSystem system, HttpExchange exchange, Map<String, String> params) throws IOException {
+        Room.RoomClass roomClass = roomClass(required(params, "roomClass"));
+        Room.BedType bedType = bedType(required(params, "bedType"));
+        LocalDate checkIn = date(params.get("checkIn"), LocalDate.now());
+        int nights = nights(params, 1, HotelManagementSystem.HORIZON_NIGHTS);
+        int[] rates = system.quoteNightlyRates(roomClass, bedType, checkIn, nights);
+        long total = 0;
+        StringBuilder json = new StringBuilder("{\"roomClass\":\"").append(roomClass).append("\",\"bedType\":\"").append(bedType)
+            .append("\",\"checkIn\":\"").append(checkIn).append("\",\"nightlyRates\":[");
+        for (int i = 0; i < rates.length; i++) {
+            json.append(i == 0 ? "" : ",").append(rates[i]);
+            total += rates[i];
+        }
+        send(exchange, 200, json.append("],\"total\":").append(total).append('}').toString());
+    }
+
+    private static void reserve(HotelManagementSystem system, HttpExchange exchange, Map<String, String> fields) throws IOException {
+        String firstName = required(fields, "firstName");
+        String lastName = required(fields, "lastName");
+        int lengthOfStay = lengthOfStay(fields);
+        Room.RoomClass roomClass = roomClass(required(fields, "roomClass"));
+        Room.BedType bedType = bedType(required(fields, "bedType"));
+        LocalDate checkIn = date(fields.get("checkIn"), LocalDate.now());
+        if (Boolean.parseBoolean(fields.get("waitlist"))) {
+            reserveOrWaitlist(system, exchange, firstName, lastName, lengthOfStay, roomClass, bedType, checkIn);
+            return;
+        }
+        Reservation reservation = system.bookStay(firstName, lastName, lengthOfStay, roomClass, bedType, checkIn);
+        if (reservation == null) {
+            send(exchange, 409, error(system.bookingFailure(roomClass, bedType, checkIn, lengthOfStay)));
+        } else {
+            send(exchange, 201, toJson(reservation));
+        }
+    }
+
+    // 201 with the reservation if a room was free, otherwise 202 with the waitlisted stay
+    private static void reserveOrWaitlist(HotelManagementSystem system, HttpExchange exchange, String firstName, String lastName, int lengthOfStay,
+                                          Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn) throws IOException {
+        Waitlist.Entry entry = system.bookOrWaitlist(firstName, lastName, lengthOfStay, roomClass, bedType, checkIn);
+        if (entry == null) {
+            send(exchange, 409, error(system.bookingFailure(roomClass, bedType, checkIn, lengthOfStay)));
+        } else if (entry.getReservation() != null) {
+            send(exchange, 201, toJson(entry.getReservation()));
+        } else {
+            send(exchange, 202, "{\"status\":\"" + (entry.priority ? "PRIORITY_WAITLISTED" : "WAITLISTED")
+                + "\",\"firstName\":" + Json.quote(firstName)
+                + ",\"lastName\":" + Json.quote(lastName)
+                + ",\"roomClass\":\"" + roomClass
+                + "\",\"bedType\":\"" + bedType
+                + "\",\"checkIn\":\"" + checkIn
+                + "\",\"lengthOfStay\":" + lengthOfStay + "}");
+        }
+    }
+
+    private static void reserveGroup(HotelManagementSystem system, HttpExchange exchange, Map<String, String> fields) throws IOException {
+        Room.RoomClass roomClass = roomClass(required(fields, "roomClass"));
+        LocalDate checkIn = date(fields.get("checkIn"), LocalDate.now());
+        boolean preferAdjacent = Boolean.parseBoolean(fields.get("preferAdjacent"));
+        List<GuestRequest> requests = new ArrayList<>();
+        for (Map<String, String> guest : Json.parseArray(required(fields, "guests"))) {
+            requests.add(new GuestRequest(required(guest, "firstName"), required(guest, "lastName"), lengthOfStay(guest), bedType(required(guest, "bedType"))));
+        }
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("guests is empty");
+        }
+        List<Reservation> booked = system.bookGroup(requests, roomClass, checkIn, preferAdjacent);
+        if (booked.isEmpty()) {
+            send(exchange, 409, error("Not enough available rooms of the requested type for the group."));
+        } else {
+            send(exchange, 201, "{\"reservations\":" + toJson(booked) + "}");
+        }
+    }
+
+    private static void cancel(HotelManagementSystem system, HttpExchange exchange, Map<String, String> params) throws IOException {
+        int roomNumber = Integer.parseInt(required(params, "roomNumber"));
+        LocalDate checkIn = date(params.get("checkIn"), null);
+        Reservation removed = system.cancelReservation(roomNumber, checkIn);
+        if (removed == null) {
+            send(exchange, 404, error("No reservation found for room number " + roomNumber + (checkIn == null ? "" : " from " + checkIn)));
+        } else {
+            send(exchange, 200, toJson(removed));
+        }
+    }
+
+    private static void search(HotelManagementSystem system, HttpExchange exchange, Map<String, String> params) throws IOException {
+        send(exchange, 200, "{\"reservations\":" + toJson(system.findReservationsByLastName(required(params, "lastName"))) + "}");
+    }
+
+    private static void fuzzySearch(HotelManagementSystem system, HttpExchange exchange, Map<String, String> params) throws IOException {
+        StringBuilder json = new StringBuilder("{\"matches\":[");
+        boolean first = true;
+        for (GuestSearchIndex.Match match : system.searchGuests(required(params, "q"), number(params.get("limit"), 20))) {
+            json.append(first ? "" : ",").append("{\"firstName\":").append(Json.quote(match.firstName))
+                .append(",\"lastName\":").append(Json.quote(match.lastName))
+                .append(String.format(Locale.ROOT, ",\"score\":%.3f", match.score))
+                .append(",\"liveStays\":").append(match.liveStays)
+                .append(",\"pastStays\":").append(match.pastStays).append('}');
+            first = false;
+        }
+        send(exchange, 200, json.append("]}").toString());
+    }
+
+    private static void history(HotelManagementSystem system, HttpExchange exchange, Map<String, String> params) throws IOException {
+        StringBuilder json = new StringBuilder("{\"stays\":[");
+        boolean first = true;
+        for (StayArchive.ArchivedStay stay : system.findArchivedStays(required(params, "lastName"))) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"status\":\"").append(stay.status == StayArchive.CANCELLED ? "CANCELLED" : "CHECKED_OUT")
+                .append("\",\"firstName\":").append(Json.quote(stay.firstName))
+                .append(",\"lastName\":").append(Json.quote(stay.lastName))
+                .append(",\"roomNumber\":").append(stay.roomNumber)
+                .append(",\"bedType\":\"").append(stay.bedType)
+                .append("\",\"checkIn\":\"").append(stay.checkIn)
+                .append("\",\"lengthOfStay\":").append(stay.lengthOfStay)
+                .append(",\"rate\":").append(stay.rate)
+                .append(",\"archivedOn\":\"").append(stay.archivedOn).append("\"}");
+        }
+        send(exchange, 200, json.append("]}").toString());
+    }
+
+    private static void income(HotelManagementSystem system, HttpExchange exchange) throws IOException {
+        send(exchange, 200, "{\"classes\":" + toJson(Portfolio.Income.of(system)) + "}");
+    }
+
+    private void handlePortfolio(HttpExchange exchange, String method, String path, Map<String, String> params) throws IOException {
+        if (!allowMethod(exchange, method, "GET")) {
+            return;
+        }
+        switch (path) {
+            case "/portfolio/availability":
+                portfolioAvailability(exchange, params);
+                break;
+            case "/portfolio/income":
+                portfolioIncome(exchange);
+                break;
+            default:
+                send(exchange, 404, error("No such endpoint: " + path));
+        }
+    }
+
+    private void portfolioAvailability(HttpExchange exchange, Map<String, String> params) throws IOException {
+        Room.RoomClass roomClass = roomClass(required(params, "roomClass"));
+        int rooms = number(params.get("rooms"), 1);
+        LocalDate checkIn = date(params.get("checkIn"), LocalDate.now());
+        int nights = nights(params, 1, HotelManagementSystem.HORIZON_NIGHTS);
+        StringBuilder json = new StringBuilder("{\"roomClass\":\"").append(roomClass).append("\",\"rooms\":").append(rooms)
+            .append(",\"checkIn\":\"").append(checkIn).append("\",\"nights\":").append(nights).append(",\"properties\":[");
+        boolean first = true;
+        for (Map.Entry<String, Integer> found : portfolio.findAvailability(roomClass, rooms, checkIn, checkIn.plusDays(nights)).entrySet()) {
+            json.append(first ? "" : ",").append("{\"property\":").append(Json.quote(found.getKey()))
+                .append(",\"available\":").append(found.getValue()).append('}');
+            first = false;
+        }
+        send(exchange, 200, json.append("]}").toString());
+    }
+
+    private void portfolioIncome(HttpExchange exchange) throws IOException {
+        Map<String, Portfolio.Income> byProperty = portfolio.incomeByProperty();
+        StringBuilder json = new StringBuilder("{\"properties\":[");
+        boolean first = true;
+        for (Map.Entry<String, Portfolio.Income> property : byProperty.entrySet()) {
+            json.append(first ? "" : ",").append("{\"property\":").append(Json.quote(property.getKey()))
+                .append(",\"classes\":").append(toJson(property.getValue())).append('}');
+            first = false;
+        }
+        json.append("],\"total\":{\"classes\":").append(toJson(Portfolio.Income.sum(byProperty.values()))).append("}}");
+        send(exchange, 200, json.toString());
+    }
+
+    private static String toJson(Portfolio.Income income) {
+        StringBuilder json = new StringBuilder("[");
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            if (roomClass.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append("{\"roomClass\":\"").append(roomClass)
+                .append("\",\"reservations\":").append(income.reservationCount(roomClass))
+                .append(",\"income\":").append(income.income(roomClass)).append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private static void analytics(HotelManagementSystem system, HttpExchange exchange, Map<String, String> params) throws IOException {
+        LocalDate from = date(params.get("from"), LocalDate.now());
+        int nights = nights(params, 30, MAX_ANALYTICS_NIGHTS);
+        RevenueAnalytics analytics = system.revenueAnalytics(from, from.plusDays(nights));
+        StringBuilder json = new StringBuilder("{\"from\":\"").append(from).append("\",\"nights\":").append(nights).append(",\"classes\":[");
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            long revenue = analytics.revenue(roomClass);
+            long nightsSold = analytics.nightsSold(roomClass);
+            long supply = analytics.roomNightsAvailable(roomClass);
+            if (roomClass.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT, "{\"roomClass\":\"%s\",\"nightsSold\":%d,\"revenue\":%d,\"adr\":%.2f,\"revPar\":%.2f,\"occupancy\":%.1f}",
+                roomClass, nightsSold, revenue, RevenueAnalytics.adr(revenue, nightsSold), RevenueAnalytics.revPar(revenue, supply),
+                RevenueAnalytics.occupancy(nightsSold, supply)));
+        }
+        send(exchange, 200, json.append("]}").toString());
+    }
+
+    private static void metrics(HotelManagementSystem system, HttpExchange exchange) throws IOException {
+        byte[] bytes = system.getMetrics().dump().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static String toJson(Reservation reservation) {
+        Guest guest = reservation.getGuest();
+        Room room = reservation.getRoom();
+        return "{\"id\":" + reservation.getId()
+            + ",\"firstName\":" + Json.quote(guest.getFirstName())
+            + ",\"lastName\":" + Json.quote(guest.getLastName())
+            + ",\"roomNumber\":" + room.getRoomNumber()
+            + ",\"roomClass\":\"" + room.getRoomClass()
+            + "\",\"bedType\":\"" + reservation.getBedType()
+            + "\",\"checkIn\":\"" + reservation.getCheckIn()
+            + "\",\"checkOut\":\"" + reservation.getCheckOut()
+            + "\",\"lengthOfStay\":" + guest.getLengthOfStay()
+            + ",\"rate\":" + reservation.getRate()
+            + ",\"revenue\":" + reservation.getRevenue() + "}";
+    }
+
+    private static String toJson(Collection<Reservation> reservations) {
+        StringBuilder json = new StringBuilder("[");
+        for (Reservation reservation : reservations) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(toJson(reservation));
+        }
+        return json.append(']').toString();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + Json.quote(message) + "}";
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // The request body, or null once a 413 has been sent for a body over MAX_BODY_BYTES. A declared length is checked
+    // before reading anything, and a body without one is read no further than one byte past the limit
+    private static String body(HttpExchange exchange) throws IOException {
+        String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (declared != null && declared.trim().matches("[0-9]+") && Long.parseLong(declared.trim()) > MAX_BODY_BYTES) {
+            send(exchange, 413, error("Request body is larger than " + MAX_BODY_BYTES + " bytes"));
+            return null;
+        }
+        byte[] bytes;
+        try (InputStream in = exchange.getRequestBody()) {
+            bytes = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (bytes.length > MAX_BODY_BYTES) {
+            send(exchange, 413, error("Request body is larger than " + MAX_BODY_BYTES + " bytes"));
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    // True if the endpoint takes the method; otherwise sends 405 with the methods it does take
+    private static boolean allowMethod(HttpExchange exchange, String method, String... allowed) throws IOException {
+        if (Arrays.asList(allowed).contains(method)) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", String.join(", ", allowed));
+        send(exchange, 405, error(method + " is not allowed here, use " + String.join(" or ", allowed)));
+        return false;
+    }
+
+    private static String required(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("missing " + name);
+        }
+        return value.trim();
+    }
+
+    private static int lengthOfStay(Map<String, String> fields) {
+        int lengthOfStay = Integer.parseInt(required(fields, "lengthOfStay"));
+        if (lengthOfStay < 1) {
+            throw new IllegalArgumentException("The minimum length of stay is 1 day");
+        }
+        return lengthOfStay;
+    }
+
+    private static Room.RoomClass roomClass(String value) {
+        return Room.RoomClass.valueOf(value.toUpperCase(Locale.ROOT));
+    }
+
+    private static Room.BedType bedType(String value) {
+        return Room.BedType.valueOf(value.toUpperCase(Locale.ROOT));
+    }
+
+    private static LocalDate date(String value, LocalDate blank) {
+        return value == null || value.isBlank() ? blank : LocalDate.parse(value.trim());
+    }
+
+    private static int number(String value, int blank) {
+        return value == null || value.isBlank() ? blank : Integer.parseInt(value.trim());
+    }
+
+    private static int nights(Map<String, String> params, int blank, int max) {
+        int nights = number(params.get("nights"), blank);
+        if (nights < 1 || nights > max) {
+            throw new IllegalArgumentException("nights must be from 1 to " + max);
+        }
+        return nights;
+    }
+}
+
+// Many hotels held as independent shards, one HotelManagementSystem per property. Each property keeps its own
+// rooms, locks, journal and archive, so a booking at one property never waits on another. Portfolio-wide queries
+// fan out to every property in parallel on a fork-join pool and merge the answers in property order.
+class Portfolio implements Closeable {
+    private final Map<String, HotelManagementSystem> properties;
+    private final ForkJoinPool pool;
+
+    public Portfolio(Map<String, HotelManagementSystem> properties) {
+        if (properties.isEmpty()) {
+            throw new IllegalArgumentException("A portfolio needs at least one property");
+        }
+        this.properties = Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+        this.pool = new ForkJoinPool(Math.min(properties.size(), Runtime.getRuntime().availableProcessors()));
+    }
+
+    // One property per layout file, named after the file up to its first dot. With a data directory each property
+    // saves its reservations in a directory of its own name under it
+    public static Portfolio load(List<Path> layoutFiles, Path dataDir) throws IOException {
+        List<RoomStore> stores = HotelLayout.loadAll(layoutFiles);
+        Map<String, HotelManagementSystem> properties = new LinkedHashMap<>();
+        for (int i = 0; i < layoutFiles.size(); i++) {
+            String fileName = layoutFiles.get(i).getFileName().toString();
+            String name = fileName.indexOf('.') > 0 ? fileName.substring(0, fileName.indexOf('.')) : fileName;
+            if (properties.containsKey(name)) {
+                throw new IllegalArgumentException("More than one layout is named " + name);
+            }
+            HotelManagementSystem system = new HotelManagementSystem();
+            system.initializeRooms(stores.get(i));
+            properties.put(name, system);
+        }
+        if (dataDir != null) {
+            // Replaying journals is most of the start-up time, so the properties replay side by side
+            try {
+                properties.entrySet().parallelStream().forEach(property -> {
+                    try {
+                        property.getValue().enablePersistence(dataDir.resolve(property.getKey()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return new Portfolio(properties);
+    }
+
+    public Set<String> propertyNames() {
+        return properties.keySet();
+    }
+
+    // The property of that name, or null
+    public HotelManagementSystem property(String name) {
+        return properties.get(name);
+    }
+
+    // Properties with at least numberOfRooms rooms of the class free on every night of the stay, with how many are free
+    public Map<String, Integer> findAvailability(Room.RoomClass roomClass, int numberOfRooms, LocalDate checkIn, LocalDate checkOut) {
+        Map<String, Integer> available = fanOut(system -> system.countAvailableRooms(roomClass, checkIn, checkOut));
+        available.values().removeIf(free -> free < numberOfRooms);
+        return available;
+    }
+
+    // Reservations and income per room class at each property
+    public Map<String, Income> incomeByProperty() {
+        return fanOut(Income::of);
+    }
+
+    // Runs the query against every property in parallel; the results keep the order of the properties
+    private <T> Map<String, T> fanOut(Function<HotelManagementSystem, T> query) {
+        return pool.submit(() -> properties.entrySet().parallelStream()
+            .collect(Collectors.toMap(Map.Entry::getKey, property -> query.apply(property.getValue()), (a, b) -> a, LinkedHashMap::new))).join();
+    }
+
+    // Prints the income table of each property followed by the portfolio total
+    public void displayIncome() {
+        Map<String, Income> byProperty = incomeByProperty();
+        System.out.println("\nTotal Income by Property and Room Class:");
+        System.out.printf("%-20s %-15s %-25s %-25s%n", "Property", "Room Class", "Rooms Reserved", "Total Income Generated");
+        for (Map.Entry<String, Income> property : byProperty.entrySet()) {
+            property.getValue().print(property.getKey());
+        }
+        Income.sum(byProperty.values()).print("ALL PROPERTIES");
+    }
+
+    // Takes a final snapshot of every property that saves its reservations
+    @Override
+    public void close() throws IOException {
+        pool.shutdown();
+        for (HotelManagementSystem system : properties.values()) {
+            system.shutdown();
+        }
+    }
+
+    // Reservation counts and income per room class, read from one property or summed over several
+    static class Income {
+        private final long[] reservationCounts = new long[Room.RoomClass.values().length];
+        private final long[] income = new long[Room.RoomClass.values().length];
+
+        static Income of(HotelManagementSystem system) {
+            Income totals = new Income();
+            for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+                totals.reservationCounts[roomClass.ordinal()] = system.reservationCount(roomClass);
+                totals.income[roomClass.ordinal()] = system.income(roomClass);
+            }
+            return totals;
+        }
+
+        static Income sum(Collection<Income> parts) {
+            Income total = new Income();
+            for (Income part : parts) {
+                for (int c = 0; c < total.income.length; c++) {
+                    total.reservationCounts[c] += part.reservationCounts[c];
+                    total.income[c] += part.income[c];
+                }
+            }
+            return total;
+        }
+
+        public long reservationCount(Room.RoomClass roomClass) {
+            return reservationCounts[roomClass.ordinal()];
+        }
+
+        public long income(Room.RoomClass roomClass) {
+            return income[roomClass.ordinal()];
+        }
+
+        private void print(String property) {
+            for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+                System.out.printf("%-20s %-15s %-25d %-25d%n", property, roomClass, reservationCount(roomClass), income(roomClass));
+            }
+        }
+    }
+}
+
+// Booking state is striped by room class: every change to the rooms, calendar and free index of a class
+// happens under that class's lock, so bookings for different classes never wait on each other.
+// Rooms are only added by initializeRooms, before the system is shared between threads.
+public class HotelManagementSystem {
+    // Every room of the hotel; Room views are made from it when needed rather than kept per room
+    private RoomStore roomStore = RoomStore.allocate(0);
+    // Reservations keyed by id, which keeps them in order of entry
+    private ConcurrentSkipListMap<Long, Reservation> reservations = new ConcurrentSkipListMap<>();
+    private FreeRoomIndex freeRoomIndex = new FreeRoomIndex();
+    static final int HORIZON_NIGHTS = 400;
+    private InventoryCalendar calendar = new InventoryCalendar(LocalDate.now(), HORIZON_NIGHTS);
+    private PricingEngine pricing = new PricingEngine(PricingRules.flat(), HORIZON_NIGHTS);
+    private volatile AllocationStrategy allocation = AllocationStrategy.MATCHING_BED;
+    // Stays waiting for a room of each class, each guarded by its class lock, and how many stays of each class may be
+    // confirmed beyond its rooms on any one night
+    private EnumMap<Room.RoomClass, Waitlist> waitlists = new EnumMap<>(Room.RoomClass.class);
+    private AtomicIntegerArray priorityAllowance = new AtomicIntegerArray(Room.RoomClass.values().length);
+    // Bookings held on each room, ordered by check-in date; each TreeMap is guarded by its room class lock
+    private ConcurrentHashMap<Integer, TreeMap<LocalDate, Reservation>> bookingsByRoom = new ConcurrentHashMap<>();
+    // Live stays of each class, earliest check-out first, for the sweep to the archive; each guarded by its class lock
+    private EnumMap<Room.RoomClass, TreeSet<Reservation>> byCheckOut = new EnumMap<>(Room.RoomClass.class);
+    private EnumMap<Room.RoomClass, ReentrantLock> classLocks = new EnumMap<>(Room.RoomClass.class);
+    private GuestNameIndex guestNameIndex = new GuestNameIndex();
+    private GuestSearchIndex guestSearch = new GuestSearchIndex();
+    private AlphabeticalReservations alphabeticalReservations = new AlphabeticalReservations();
+    private BookingTotals bookingTotals = new BookingTotals();
+    private HotelMetrics metrics = new HotelMetrics();
+    private EventBus events = new EventBus(1 << 14);
+    private ReservationJournal journal; // null until persistence is enabled
+    private StayArchive archive; // null until persistence is enabled
+    // Written by the sweep moving stays from the live reservations to the archive and read by analytics, which read
+    // both, so no stay is counted twice or missed while it moves
+    private ReentrantReadWriteLock archiveSweep = new ReentrantReadWriteLock();
+    // Lowest and highest room rate of each class, set with the rooms
+    private EnumMap<Room.RoomClass, int[]> baseRates = new EnumMap<>(Room.RoomClass.class);
+    // Held for a whole snapshot, so the scheduled one and the one at shutdown never write snapshot.tmp at once
+    private ReentrantLock snapshotLock = new ReentrantLock();
+    private ScheduledExecutorService snapshotScheduler;
+
+    public HotelManagementSystem() {
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            classLocks.put(roomClass, new ReentrantLock());
+            waitlists.put(roomClass, new Waitlist());
+            byCheckOut.put(roomClass, new TreeSet<>(Comparator.comparing(Reservation::getCheckOut).thenComparingLong(Reservation::getId)));
+        }
+    }
+
+    // Method to initiliase the hotel room allocations from the default layout (250 standard, 250 deluxe and 30 superior rooms)
+    public void initializeRooms() {
+        try {
+            initializeRooms(HotelLayout.parse(HotelLayout.DEFAULT, null));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // an off-heap store does no I/O
+        }
+    }
+
+    // Method to initialise the hotel from a saved room store, which becomes the hotel's only copy of its rooms. Only the
+    // layout is taken from the store: availability and bed set-up are rebuilt from the reservations
+    public void initializeRooms(RoomStore store) {
+        if (roomStore.size() > 0) {
+            throw new IllegalStateException("The hotel's rooms are already initialised");
+        }
+        roomStore = store;
+        store.resetStates();
+        freeRoomIndex.addRooms(store);
+        calendar.addRooms(store);
+        for (int i = 0; i < store.size(); i++) {
+            int rate = store.rate(i);
+            int[] range = baseRates.computeIfAbsent(store.roomClass(i), c -> new int[] {rate, rate});
+            range[0] = Math.min(range[0], rate);
+            range[1] = Math.max(range[1], rate);
+        }
+    }
+
+    // Saves the current room layout as a memory-mapped room store for faster start-up next time
+    public RoomStore saveRooms(Path file) throws IOException {
+        return RoomStore.create(file, roomStore);
+    }
+
+    // A view of the room with the number, or null if the hotel has no such room
+    private Room room(int roomNumber) {
+        int index = roomStore.indexOf(roomNumber);
+        return index < 0 ? null : roomStore.view(index);
+    }
+
+    // JMX view of HotelMetrics; JMX only accepts public interfaces, so it is declared here
+    public interface MetricsMXBean {
+        Map<String, Long> getCounts();
+
+        Map<String, Double> getLatencyP50Micros();
+
+        Map<String, Double> getLatencyP99Micros();
+
+        Map<String, Double> getLatencyMaxMicros();
+
+        String dump();
+    }
+
+    public HotelMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Every booking, cancellation, check-out, bed change and room availability change, for other systems to subscribe to
+    public EventBus getEvents() {
+        return events;
+    }
+
+    // Menu case 1: Method to display all available rooms
+    public void displayAvailableRooms() {
+        long start = System.nanoTime();
+        ReportWriter report = ReportWriter.console(0);
+        try {
+            writeAvailableRooms(report);
+            report.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.record(HotelMetrics.Operation.AVAILABLE_ROOMS_REPORT, null, HotelMetrics.Outcome.OK, start);
+        }
+    }
+
+    public void writeAvailableRooms(ReportWriter report) throws IOException {
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            report.text("Available " + roomClass + " rooms:");
+            BitSet free;
+            ReentrantLock lock = classLocks.get(roomClass);
+            lock.lock();
+            try {
+                free = freeRoomIndex.snapshot(roomClass);
+            } finally {
+                lock.unlock();
+            }
+            for (int n = free.nextSetBit(0); n >= 0; n = free.nextSetBit(n + 1)) {
+                report.cell("Room Number:").cell(n).endRow();
+            }
+        }
+    }
+
+    // Menu case 2: method to display room details for a class
+    public void displayRoomDetails(Room.RoomClass roomClass) {
+        long start = System.nanoTime();
+        int availableCount = freeRoomIndex.freeCount(roomClass);
+        int reservedCount = freeRoomIndex.totalCount(roomClass) - availableCount;
+        long totalIncome = bookingTotals.income(roomClass);
+        
+        System.out.println("\nDetailed Information for " + roomClass + " Rooms:");
+        System.out.printf("%-15s %-25s %-30s %-15s%n", "Room Class", "Rooms Reserved", "Rooms Available", "Total Income");
+        System.out.printf("%-15s %-25d %-30d %-15d%n", roomClass, reservedCount, availableCount, totalIncome);
+        int waitlisted = waitlistSize(roomClass);
+        if (waitlisted > 0) {
+            System.out.println(waitlisted + " stays are waiting for a " + roomClass + " room.");
+        }
+        metrics.record(HotelMetrics.Operation.ROOM_DETAILS_REPORT, roomClass, HotelMetrics.Outcome.OK, start);
+    }
+
+    // Menu case 3: Method to display reservations (by order of entry)
+    public void displayAllReservations() {
+        long start = System.nanoTime();
+        printReservations("\nCurrent Reservations:", reservations.values());
+        metrics.record(HotelMetrics.Operation.RESERVATIONS_REPORT, null, HotelMetrics.Outcome.OK, start);
+    }
+
+    // Writes every reservation, in order of entry, to a file without going through the console
+    public void exportReservations(Path file) throws IOException {
+        long start = System.nanoTime();
+        ReportWriter report = ReportWriter.file(file, RESERVATION_COLUMNS);
+        try {
+            writeReservations(report, reservations.values());
+        } finally {
+            report.close();
+            metrics.record(HotelMetrics.Operation.RESERVATIONS_REPORT, null, HotelMetrics.Outcome.OK, start);
+        }
+    }
+
+    private static final int[] RESERVATION_COLUMNS = {15};
+    private static final long ARCHIVE_SEGMENT_BYTES = 64L << 20;
+
+    public void printReservations(String title, Iterable<Reservation> rows) {
+        ReportWriter report = ReportWriter.console(RESERVATION_COLUMNS);
+        try {
+            report.text(title);
+            writeReservations(report, rows);
+            report.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Writes the reservation table header and one row per reservation, returning the number of rows
+    public long writeReservations(ReportWriter report, Iterable<Reservation> rows) throws IOException {
+        report.cell("First Name").cell("Last Name").cell("Check-In").cell("Length of Stay").cell("Room Reserved").cell("Room Class").cell("Bed Type").endRow();
+        long count = 0;
+        for (Reservation reservation : rows) {
+            Guest guest = reservation.getGuest();
+            Room room = reservation.getRoom();
+            report.cell(guest.getFirstName())
+                .cell(guest.getLastName())
+                .cell(reservation.getCheckIn())
+                .cell(guest.getLengthOfStay())
+                .cell(room.getRoomNumber())
+                .cell(room.getRoomClass())
+                .cell(reservation.getBedType())
+                .endRow();
+            count++;
+        }
+        return count;
+    }
+
+    // Menu case 4: Method to display reservations (by last name A-to-Z)
+    public void alphabetisedDisplayAllReservations() {
+        long start = System.nanoTime();
+        printReservations("\nAlphabetised Current Reservations:", alphabeticalReservations.all());
+        metrics.record(HotelMetrics.Operation.ALPHABETICAL_REPORT, null, HotelMetrics.Outcome.OK, start);
+    }
+
+    // A page of reservations in A-to-Z order, starting at the first last name at or after the given one
+    public List<Reservation> alphabetisedPageFrom(String lastName, int pageSize) {
+        return alphabeticalReservations.pageFrom(lastName, pageSize);
+    }
+
+    // The page of reservations in A-to-Z order that follows the last reservation of the previous page
+    public List<Reservation> alphabetisedPageAfter(Reservation previous, int pageSize) {
+        return alphabeticalReservations.pageAfter(previous, pageSize);
+    }
+
+
+    // Menu case 5: Method to display revenue, ADR, RevPAR and occupancy for the nights [from, to)
+    public void displayRevenueAnalytics(LocalDate from, LocalDate to) {
+        RevenueAnalytics analytics = revenueAnalytics(from, to);
+
+        System.out.println("\nRevenue Analytics for nights " + from + " to " + to + ":");
+        System.out.printf("%-15s %-15s %-15s %-15s %-15s %-15s%n", "Room Class", "Nights Sold", "Revenue", "ADR", "RevPAR", "Occupancy %");
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            long revenue = analytics.revenue(roomClass);
+            long nightsSold = analytics.nightsSold(roomClass);
+            long supply = analytics.roomNightsAvailable(roomClass);
+            System.out.printf("%-15s %-15d %-15d %-15.2f %-15.2f %-15.1f%n", roomClass, nightsSold, revenue,
+                RevenueAnalytics.adr(revenue, nightsSold), RevenueAnalytics.revPar(revenue, supply), RevenueAnalytics.occupancy(nightsSold, supply));
+        }
+        System.out.printf("%-15s %-15s %-15s %-15s %-15s %-15s%n", "Bed Type", "Nights Sold", "Revenue", "ADR", "RevPAR", "Occupancy %");
+        for (Room.BedType bedType : Room.BedType.values()) {
+            long revenue = analytics.revenue(bedType);
+            long nightsSold = analytics.nightsSold(bedType);
+            long supply = analytics.roomNightsAvailable();
+            System.out.printf("%-15s %-15d %-15d %-15.2f %-15.2f %-15.1f%n", bedType, nightsSold, revenue,
+                RevenueAnalytics.adr(revenue, nightsSold), RevenueAnalytics.revPar(revenue, supply), RevenueAnalytics.occupancy(nightsSold, supply));
+        }
+    }
+
+    // Revenue, nights sold and room nights available for the nights [from, to)
+    public RevenueAnalytics revenueAnalytics(LocalDate from, LocalDate to) {
+        long start = System.nanoTime();
+        int[] roomsPerClass = new int[Room.RoomClass.values().length];
+        long reservationCount = 0;
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            roomsPerClass[roomClass.ordinal()] = freeRoomIndex.totalCount(roomClass);
+            reservationCount += bookingTotals.reservationCount(roomClass);
+        }
+        RevenueAnalytics analytics;
+        StayArchive archive = this.archive;
+        archiveSweep.readLock().lock();
+        try {
+            analytics = RevenueAnalytics.compute(reservations.values(), reservationCount > 10_000, roomsPerClass, from, to);
+            // Stays that have checked out are no longer live; the archive only reads the segments that reach into the window
+            if (archive != null) {
+                archive.forEachStayIn(from, to, stay -> {
+                    Room room = room(stay.roomNumber);
+                    if (room != null) {
+                        analytics.addArchived(room.getRoomClass(), stay);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            archiveSweep.readLock().unlock();
+        }
+        metrics.record(HotelMetrics.Operation.ANALYTICS_REPORT, null, HotelMetrics.Outcome.OK, start);
+        return analytics;
+    }
+
+    public long reservationCount(Room.RoomClass roomClass) {
+        return bookingTotals.reservationCount(roomClass);
+    }
+
+    public long income(Room.RoomClass roomClass) {
+        return bookingTotals.income(roomClass);
+    }
+
+    // Every live reservation in order of entry, as a read-only view
+    Collection<Reservation> currentReservations() {
+        return Collections.unmodifiableCollection(reservations.values());
+    }
+
+    // Every live reservation in A-to-Z order, as a read-only view
+    Collection<Reservation> alphabeticalReservations() {
+        return Collections.unmodifiableCollection(alphabeticalReservations.all());
+    }
+
+    // Rooms of the class the calendar counts as taken on the night
+    int bookedRooms(Room.RoomClass roomClass, LocalDate night) {
+        ReentrantLock lock = classLocks.get(roomClass);
+        lock.lock();
+        try {
+            return calendar.bookedCount(roomClass, night.toEpochDay());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Method to display the income booked per room class, counting every night of each stay
+    public void calculateTotalIncome() {
+        long start = System.nanoTime();
+        // Display the running totals in a table format
+        System.out.println("\nTotal Income by Room Class:");
+        System.out.printf("%-15s %-25s %-25s%n", "Room Class", "Rooms Reserved", "Total Income Generated");
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            System.out.printf("%-15s %-25d %-25d%n", roomClass, bookingTotals.reservationCount(roomClass), bookingTotals.income(roomClass));
+        }
+        metrics.record(HotelMetrics.Operation.INCOME_REPORT, null, HotelMetrics.Outcome.OK, start);
+    }
+
+    // Menu case 6: Method to search for guests by last name; a trailing * matches every last name starting with the prefix
+    public void searchGuestByLastName(String lastName) {
+        Collection<Reservation> matches = findReservationsByLastName(lastName);
+        ReportWriter report = ReportWriter.console(RESERVATION_COLUMNS);
+        try {
+            report.text("\nSearch Results for Last Name: " + lastName);
+            if (writeReservations(report, matches) == 0) {
+                report.text("No bookings found under the last name: " + lastName);
+                List<GuestSearchIndex.Match> similar = lastName.endsWith("*") ? new ArrayList<>() : searchGuests(lastName, 5);
+                if (!similar.isEmpty()) {
+                    report.text("Guests with similar names:");
+                    for (GuestSearchIndex.Match match : similar) {
+                        report.text("  " + match.firstName + " " + match.lastName + " (" + match.liveStays + " current, " + match.pastStays + " past stays)");
+                    }
+                }
+            }
+            report.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Reservations under the last name, or under every last name starting with the prefix if it ends with *
+    public Collection<Reservation> findReservationsByLastName(String lastName) {
+        long start = System.nanoTime();
+        Collection<Reservation> matches = lastName.endsWith("*")
+            ? guestNameIndex.findByPrefix(lastName.substring(0, lastName.length() - 1))
+            : guestNameIndex.findByLastName(lastName);
+        metrics.record(HotelMetrics.Operation.SEARCH, null, matches.isEmpty() ? HotelMetrics.Outcome.NOT_FOUND : HotelMetrics.Outcome.OK, start);
+        return matches;
+    }
+
+    // Guests, current or past, whose names best match the query despite typos or spelling, best first (see GuestSearchIndex)
+    public List<GuestSearchIndex.Match> searchGuests(String query, int limit) {
+        long start = System.nanoTime();
+        List<GuestSearchIndex.Match> matches = guestSearch.search(query, limit);
+        metrics.record(HotelMetrics.Operation.SEARCH, null, matches.isEmpty() ? HotelMetrics.Outcome.NOT_FOUND : HotelMetrics.Outcome.OK, start);
+        return matches;
+    }
+
+    // Menu case 7: Method to reserve a room
+    public Reservation reserveRoom(String firstName, String lastName, int lengthOfStay, Room.RoomClass roomClass, Room.BedType bedType) {
+        return reserveRoom(firstName, lastName, lengthOfStay, roomClass, bedType, LocalDate.now());
+    }
+
+    // Reserves the first room of the class that is free for every night of the stay
+    public Reservation reserveRoom(String firstName, String lastName, int lengthOfStay, Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn) {
+        Reservation reservation = bookStay(firstName, lastName, lengthOfStay, roomClass, bedType, checkIn);
+        if (reservation == null) {
+            System.out.println(bookingFailure(roomClass, bedType, checkIn, lengthOfStay));
+        } else {
+            System.out.println("Room " + reservation.getRoom().getRoomNumber() + " reserved for " + firstName + " " + lastName + " from " + checkIn);
+        }
+        return reservation;
+    }
+
+    // Books the stay and waits for the journal without reporting to the console; null if it cannot be booked
+    public Reservation bookStay(String firstName, String lastName, int lengthOfStay, Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn) {
+        Reservation reservation = placeStay(firstName, lastName, lengthOfStay, roomClass, bedType, checkIn, false);
+        syncJournal();
+        return reservation;
+    }
+
+    // Books the stay without waiting for the journal or reporting to the console; null if it cannot be booked. With
+    // allowStarted, as for guests already staying when bookings are imported, the check-in may have passed as long as
+    // the check-out has not; only the nights from today on need a free room
+    private Reservation placeStay(String firstName, String lastName, int lengthOfStay, Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn, boolean allowStarted) {
+        long start = System.nanoTime();
+        HotelMetrics.Outcome outcome = HotelMetrics.Outcome.OUT_OF_RANGE;
+        LocalDate checkOut = checkIn.plusDays(lengthOfStay);
+        ReentrantLock lock = classLocks.get(roomClass);
+        lock.lock();
+        try {
+            calendar.rollTo(roomClass, LocalDate.now());
+            if (!offersBedType(roomClass, bedType)) {
+                outcome = HotelMetrics.Outcome.BED_NOT_OFFERED;
+                return null;
+            }
+            LocalDate today = calendar.today(roomClass);
+            if (!calendar.covers(roomClass, allowStarted && checkIn.isBefore(today) ? today : checkIn, checkOut)) {
+                return null;
+            }
+            Reservation reservation = bookAllocated(firstName, lastName, lengthOfStay, roomClass, bedType, checkIn, checkOut);
+            outcome = reservation == null ? HotelMetrics.Outcome.SOLD_OUT : HotelMetrics.Outcome.OK;
+            return reservation;
+        } finally {
+            lock.unlock();
+            metrics.record(HotelMetrics.Operation.RESERVE, roomClass, outcome, start);
+        }
+    }
+
+    // Books the stay if a room is free for it, and otherwise puts it on the class waitlist to be booked when a cancellation
+    // frees a room. Stays within the class's priority allowance on every night are given priority and come first.
+    // Returns the entry, holding the booking if one was made, or null if the stay could never be booked
+    public Waitlist.Entry bookOrWaitlist(String firstName, String lastName, int lengthOfStay, Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn) {
+        if (bedType == null) {
+            throw new IllegalArgumentException("A waitlisted stay needs a bed type");
+        }
+        long start = System.nanoTime();
+        HotelMetrics.Outcome outcome = HotelMetrics.Outcome.OUT_OF_RANGE;
+        LocalDate checkOut = checkIn.plusDays(lengthOfStay);
+        Waitlist.Entry entry = null;
+        ReentrantLock lock = classLocks.get(roomClass);
+        lock.lock();
+        try {
+            calendar.rollTo(roomClass, LocalDate.now());
+            if (!offersBedType(roomClass, bedType)) {
+                outcome = HotelMetrics.Outcome.BED_NOT_OFFERED;
+            } else if (calendar.covers(roomClass, checkIn, checkOut)) {
+                Reservation reservation = bookAllocated(firstName, lastName, lengthOfStay, roomClass, bedType, checkIn, checkOut);
+                if (reservation != null) {
+                    entry = Waitlist.booked(reservation);
+                    outcome = HotelMetrics.Outcome.OK;
+                } else {
+                    Waitlist waitlist = waitlists.get(roomClass);
+                    waitlist.dropBefore(calendar.today(roomClass));
+                    boolean priority = waitlist.hasPriorityPlace(checkIn, lengthOfStay, priorityAllowance.get(roomClass.ordinal()));
+                    entry = waitlist.add(firstName, lastName, lengthOfStay, bedType, checkIn, priority);
+                    if (journal != null) {
+                        journal.appendWaitlisted(roomClass, entry);
+                    }
+                    outcome = HotelMetrics.Outcome.WAITLISTED;
+                }
+            }
+        } finally {
+            lock.unlock();
+            metrics.record(HotelMetrics.Operation.RESERVE, roomClass, outcome, start);
+        }
+        syncJournal();
+        return entry;
+    }
+
+    // Prints where the stay ended up after bookOrWaitlist
+    public Waitlist.Entry waitlistRoom(String firstName, String lastName, int lengthOfStay, Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn) {
+        Waitlist.Entry entry = bookOrWaitlist(firstName, lastName, lengthOfStay, roomClass, bedType, checkIn);
+        if (entry == null) {
+            System.out.println(bookingFailure(roomClass, bedType, checkIn, lengthOfStay));
+        } else if (entry.getReservation() != null) {
+            System.out.println("Room " + entry.getReservation().getRoom().getRoomNumber() + " reserved for " + firstName + " " + lastName + " from " + checkIn);
+        } else {
+            System.out.println(firstName + " " + lastName + (entry.priority ? " is first on the waitlist" : " is waitlisted")
+                + " and will be given a room as soon as one is cancelled.");
+        }
+        return entry;
+    }
+
+    // Stays of the class waiting for a room, not counting those whose check-in has passed
+    public int waitlistSize(Room.RoomClass roomClass) {
+        ReentrantLock lock = classLocks.get(roomClass);
+        lock.lock();
+        try {
+            waitlists.get(roomClass).dropBefore(LocalDate.now());
+            return waitlists.get(roomClass).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lets up to stays waitlisted stays of the class per night go before the rest of the waitlist. They are still only
+    // booked once a cancellation frees a room: nothing is confirmed beyond the class's rooms
+    public void setPriorityAllowance(Room.RoomClass roomClass, int stays) {
+        if (stays < 0) {
+            throw new IllegalArgumentException("The priority allowance cannot be negative");
+        }
+        priorityAllowance.set(roomClass.ordinal(), stays);
+    }
+
+    // True if the stay could be booked were a room free: the class offers the bed type and the dates are in the horizon
+    boolean isBookable(Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn, int lengthOfStay) {
+        if (!offersBedType(roomClass, bedType)) {
+            return false;
+        }
+        ReentrantLock lock = classLocks.get(roomClass);
+        lock.lock();
+        try {
+            return calendar.covers(roomClass, checkIn, checkIn.plusDays(lengthOfStay));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Explains why a stay could not be booked
+    String bookingFailure(Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn, int lengthOfStay) {
+        if (!offersBedType(roomClass, bedType)) {
+            return bedType + " beds are not offered in " + roomClass + " rooms.";
+        }
+        ReentrantLock lock = classLocks.get(roomClass);
+        lock.lock();
+        try {
+            if (!calendar.covers(roomClass, checkIn, checkIn.plusDays(lengthOfStay))) {
+                return "Stays must start from today and end by " + calendar.lastBookableDay(roomClass) + ".";
+            }
+        } finally {
+            lock.unlock();
+        }
+        return "No available rooms of the requested type.";
+    }
+
+    // Bed types that at least one room of the class can be set up with, in BedType order
+    public List<Room.BedType> allowedBedTypes(Room.RoomClass roomClass) {
+        List<Room.BedType> bedTypes = new ArrayList<>();
+        int offered = calendar.bedTypesOffered(roomClass);
+        for (Room.BedType bedType : Room.BedType.values()) {
+            if ((offered & Room.bedMask(bedType)) != 0) {
+                bedTypes.add(bedType);
+            }
+        }
+        return bedTypes;
+    }
+
+    // Rooms are only added before the system is shared, so the bed types offered never change and need no lock
+    private boolean offersBedType(Room.RoomClass roomClass, Room.BedType bedType) {
+        return bedType == null || !calendar.slotsWithBed(roomClass, bedType).isEmpty();
+    }
+
+    // Claims the room the allocation strategy picks among those free for the stay; the caller must hold the class lock.
+    // A stay that has already started only needs the room from today on, and is priced at the rates of those nights, as
+    // the pricing engine holds none for nights gone by
+    private Reservation bookAllocated(String firstName, String lastName, int lengthOfStay, Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn, LocalDate checkOut) {
+        LocalDate from = checkIn.isBefore(calendar.today(roomClass)) ? calendar.today(roomClass) : checkIn;
+        Room room = allocateRoom(roomClass, bedType, from, checkOut);
+        if (room == null) {
+            return null;
+        }
+        return bookRoom(room, firstName, lastName, lengthOfStay, bedType, checkIn,
+            pricing.stayRate(room.getRate(), roomClass, bedType, from, (int) (checkOut.toEpochDay() - from.toEpochDay())));
+    }
+
+    // The room the allocation strategy picks among those free from `from` to checkOut, or null if none is; the caller
+    // must hold the class lock
+    private Room allocateRoom(Room.RoomClass roomClass, Room.BedType bedType, LocalDate from, LocalDate checkOut) {
+        BitSet candidates = calendar.freeSlots(roomClass, from, checkOut);
+        if (bedType != null) {
+            candidates.and(calendar.slotsWithBed(roomClass, bedType));
+        }
+        int slot = allocation.choose(calendar, roomClass, bedType, candidates);
+        return slot < 0 ? null : room(calendar.roomNumberAt(roomClass, slot));
+    }
+
+    // Records a stay on a room already known to be free for it; the caller must hold the class lock
+    private Reservation bookRoom(Room room, String firstName, String lastName, int lengthOfStay, Room.BedType bedType, LocalDate checkIn, int rate) {
+        LocalDate checkOut = checkIn.plusDays(lengthOfStay);
+        Room.BedType previousBedType = room.getBedType();
+        boolean wasAvailable = room.isAvailable();
+        calendar.setUp(room, bedType);
+        room.setBedType(bedType);
+        Guest guest = new Guest(firstName, lastName, lengthOfStay, room);
+        Reservation reservation = new Reservation(guest, room, checkIn, rate);
+        calendar.reserve(room, checkIn, checkOut);
+        refreshPricing(room.getRoomClass(), checkIn, checkOut);
+        freeRoomIndex.markReserved(room);
+        bookingsByRoom.computeIfAbsent(room.getRoomNumber(), n -> new TreeMap<>()).put(checkIn, reservation);
+        reservations.put(reservation.getId(), reservation);
+        byCheckOut.get(room.getRoomClass()).add(reservation);
+        guestNameIndex.add(reservation);
+        guestSearch.addLive(firstName, lastName, 1);
+        alphabeticalReservations.add(reservation);
+        bookingTotals.recordBooking(reservation);
+        if (journal != null) {
+            journal.appendBooking(reservation);
+        }
+        events.publish(ReservationEvent.Type.BOOKED, room, reservation);
+        if (bedType != previousBedType) {
+            events.publish(ReservationEvent.Type.BED_CHANGED, room, null);
+        }
+        if (wasAvailable) {
+            events.publish(ReservationEvent.Type.ROOM_OCCUPIED, room, null);
+        }
+        return reservation;
+    }
+
+    // Menu case 8: Method to reserve rooms for a whole group at once; either every guest gets a room or none do
+    public List<Reservation> reserveGroup(List<GuestRequest> requests, Room.RoomClass roomClass) {
+        return reserveGroup(requests, roomClass, LocalDate.now(), false);
+    }
+
+    public List<Reservation> reserveGroup(List<GuestRequest> requests, Room.RoomClass roomClass, LocalDate checkIn, boolean preferAdjacent) {
+        List<Reservation> booked = bookGroup(requests, roomClass, checkIn, preferAdjacent);
+        if (booked.isEmpty()) {
+            System.out.println("Unfortunately, we do not have enough available rooms of the requested type for your group.");
+            return booked;
+        }
+        for (Reservation reservation : booked) {
+            Guest guest = reservation.getGuest();
+            System.out.println("Room " + reservation.getRoom().getRoomNumber() + " reserved for " + guest.getFirstName() + " " + guest.getLastName() + " from " + checkIn);
+        }
+        return booked;
+    }
+
+    // Books the whole group and waits for the journal without reporting to the console; empty if the group does not fit
+    public List<Reservation> bookGroup(List<GuestRequest> requests, Room.RoomClass roomClass, LocalDate checkIn, boolean preferAdjacent) {
+        long start = System.nanoTime();
+        HotelMetrics.Outcome outcome = HotelMetrics.Outcome.SOLD_OUT;
+        int groupSize = requests.size();
+        // Longest stays are the hardest to place, so they are given rooms first
+        Integer[] order = new Integer[groupSize];
+        for (int i = 0; i < groupSize; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt((Integer i) -> requests.get(i).getLengthOfStay()).reversed());
+
+        Reservation[] booked = new Reservation[groupSize];
+        boolean allPlaced = groupSize > 0;
+        ReentrantLock lock = classLocks.get(roomClass);
+        lock.lock();
+        try {
+            calendar.rollTo(roomClass, LocalDate.now());
+            int[] slots = allPlaced ? placeGroup(requests, order, roomClass, checkIn, preferAdjacent) : null;
+            allPlaced = slots != null;
+            if (allPlaced) {
+                // Every room is known to be free, so committing the whole group cannot fail part way
+                for (int i = 0; i < groupSize; i++) {
+                    GuestRequest request = requests.get(order[i]);
+                    Room room = room(calendar.roomNumberAt(roomClass, slots[i]));
+                    int rate = pricing.stayRate(room.getRate(), roomClass, request.getBedType(), checkIn, request.getLengthOfStay());
+                    booked[order[i]] = bookRoom(room, request.getFirstName(), request.getLastName(), request.getLengthOfStay(), request.getBedType(), checkIn, rate);
+                }
+                outcome = HotelMetrics.Outcome.OK;
+            } else if (requests.stream().anyMatch(request -> !offersBedType(roomClass, request.getBedType()))) {
+                outcome = HotelMetrics.Outcome.BED_NOT_OFFERED;
+            } else if (groupSize > 0 && !calendar.covers(roomClass, checkIn, checkIn.plusDays(requests.get(order[0]).getLengthOfStay()))) {
+                outcome = HotelMetrics.Outcome.OUT_OF_RANGE;
+            }
+        } finally {
+            lock.unlock();
+            metrics.record(HotelMetrics.Operation.GROUP_RESERVE, roomClass, outcome, start);
+        }
+        syncJournal();
+        return allPlaced ? Arrays.asList(booked) : new ArrayList<>();
     }
 
-    public BedType getBedType() {
-        return bedType;
+    // Picks a calendar slot for each request, in the given order, without changing any state; null if the group does not fit.
+    // A guest can only take a room free for their own stay that offers their bed, so a room the allocation strategy hands
+    // to one guest may be the only one another could take; rooms are then passed along between guests rather than giving
+    // up, and the group is only refused when no assignment exists. The caller must hold the class lock
+    private int[] placeGroup(List<GuestRequest> requests, Integer[] order, Room.RoomClass roomClass, LocalDate checkIn, boolean preferAdjacent) {
+        int groupSize = order.length;
+        int longest = requests.get(order[0]).getLengthOfStay();
+        int shortest = requests.get(order[groupSize - 1]).getLengthOfStay();
+        if (shortest < 1 || !calendar.covers(roomClass, checkIn, checkIn.plusDays(longest))) {
+            return null;
+        }
+        // Guests with the same stay length and bed can take the same rooms, so they share one bitmap of them
+        List<BitSet> options = new ArrayList<>();
+        Map<Integer, Integer> optionsByStay = new HashMap<>();
+        int[] optionsOf = new int[groupSize];
+        Room.BedType[] bedTypes = new Room.BedType[groupSize];
+        for (int i = 0; i < groupSize; i++) {
+            int length = requests.get(order[i]).getLengthOfStay();
+            Room.BedType bedType = requests.get(order[i]).getBedType();
+            bedTypes[i] = bedType;
+            int key = length * (Room.BedType.values().length + 1) + (bedType == null ? 0 : bedType.ordinal() + 1);
+            optionsOf[i] = optionsByStay.computeIfAbsent(key, k -> {
+                BitSet free = calendar.freeSlots(roomClass, checkIn, checkIn.plusDays(length));
+                if (bedType != null) {
+                    free.and(calendar.slotsWithBed(roomClass, bedType));
+                }
+                options.add(free);
+                return options.size() - 1;
+            });
+        }
+        if (preferAdjacent) {
+            int[] slots = placeAdjacent(roomClass, options, optionsOf);
+            if (slots != null) {
+                return slots;
+            }
+        }
+        // Longest stays first, as they have the fewest rooms to choose from
+        int[] slots = new int[groupSize];
+        BitSet taken = new BitSet();
+        for (int i = 0; i < groupSize; i++) {
+            if (!assign(i, i, slots, taken, new BitSet(), roomClass, bedTypes, options, optionsOf)) {
+                return null;
+            }
+        }
+        return slots;
     }
 
-    public int getRate() {
-        return rate;
+    // Gives guest a room, preferring the allocation strategy's pick among those no guest before placed holds; failing that,
+    // takes a room held by a guest who can move to another in turn (an augmenting path). Visited stops a path passing
+    // through the same room twice, so each attempt is bounded by the group size
+    private boolean assign(int guest, int placed, int[] slots, BitSet taken, BitSet visited, Room.RoomClass roomClass, Room.BedType[] bedTypes, List<BitSet> options, int[] optionsOf) {
+        BitSet guestOptions = options.get(optionsOf[guest]);
+        BitSet open = (BitSet) guestOptions.clone();
+        open.andNot(taken);
+        int slot = allocation.choose(calendar, roomClass, bedTypes[guest], open);
+        if (slot >= 0) {
+            slots[guest] = slot;
+            taken.set(slot);
+            return true;
+        }
+        for (int holder = 0; holder < placed; holder++) {
+            int held = slots[holder];
+            if (holder != guest && guestOptions.get(held) && !visited.get(held)) {
+                visited.set(held);
+                if (assign(holder, placed, slots, taken, visited, roomClass, bedTypes, options, optionsOf)) {
+                    slots[guest] = held;
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
-    public boolean isAvailable() {
-        return isAvailable;
+    // Slots for the first run of neighbouring rooms, one per guest, that the group can share out among themselves, or null.
+    // Neighbours have consecutive numbers on the same floor (housekeeping zone), so 199 and 200 never make a run even when
+    // both are free; runs are found by room number rather than slot, as layouts need not list rooms in order
+    private int[] placeAdjacent(Room.RoomClass roomClass, List<BitSet> options, int[] optionsOf) {
+        int groupSize = optionsOf.length;
+        int[] demand = new int[options.size()];
+        for (int i = 0; i < groupSize; i++) {
+            demand[optionsOf[i]]++;
+        }
+        BitSet usable = new BitSet();
+        for (BitSet free : options) {
+            usable.or(free);
+        }
+        BitSet roomNumbers = new BitSet();
+        for (int slot = usable.nextSetBit(0); slot >= 0; slot = usable.nextSetBit(slot + 1)) {
+            roomNumbers.set(calendar.roomNumberAt(roomClass, slot));
+        }
+        // Rooms of the current window each kind of guest can take, kept as the window slides; a window is only matched
+        // once it has enough of them for every kind
+        int[] supply = new int[options.size()];
+        int start = -1;
+        int previous = -1;
+        for (int n = roomNumbers.nextSetBit(0); n >= 0; n = roomNumbers.nextSetBit(n + 1)) {
+            if (start < 0 || n != previous + 1 || InventoryCalendar.zone(n) != InventoryCalendar.zone(start)) {
+                start = n;
+                Arrays.fill(supply, 0);
+            }
+            previous = n;
+            countSupply(supply, options, calendar.slotOf(n), 1);
+            if (n - start >= groupSize) {
+                countSupply(supply, options, calendar.slotOf(n - groupSize), -1);
+            }
+            if (n - start + 1 < groupSize || !meetsDemand(supply, demand)) {
+                continue;
+            }
+            int[] window = new int[groupSize];
+            for (int r = 0; r < groupSize; r++) {
+                window[r] = calendar.slotOf(n - groupSize + 1 + r);
+            }
+            int[] guestAt = new int[groupSize];
+            Arrays.fill(guestAt, -1);
+            boolean matched = true;
+            for (int guest = 0; guest < groupSize && matched; guest++) {
+                matched = matchInWindow(guest, window, guestAt, new boolean[groupSize], options, optionsOf);
+            }
+            if (matched) {
+                int[] slots = new int[groupSize];
+                for (int r = 0; r < groupSize; r++) {
+                    slots[guestAt[r]] = window[r];
+                }
+                return slots;
+            }
+        }
+        return null;
     }
-    
-    public void setAvailable(boolean isAvailable) {
-        this.isAvailable = isAvailable;
+
+    private static void countSupply(int[] supply, List<BitSet> options, int slot, int change) {
+        for (int k = 0; k < supply.length; k++) {
+            if (options.get(k).get(slot)) {
+                supply[k] += change;
+            }
+        }
     }
 
-    public void setBedType(BedType bedType) {
-        this.bedType = bedType;
+    private static boolean meetsDemand(int[] supply, int[] demand) {
+        for (int k = 0; k < supply.length; k++) {
+            if (supply[k] < demand[k]) {
+                return false;
+            }
+        }
+        return true;
     }
 
-}
+    // Finds guest a room of the window, moving the guest already in it to another along an augmenting path if need be
+    private static boolean matchInWindow(int guest, int[] window, int[] guestAt, boolean[] visited, List<BitSet> options, int[] optionsOf) {
+        for (int r = 0; r < window.length; r++) {
+            if (!visited[r] && options.get(optionsOf[guest]).get(window[r])) {
+                visited[r] = true;
+                if (guestAt[r] < 0 || matchInWindow(guestAt[r], window, guestAt, visited, options, optionsOf)) {
+                    guestAt[r] = guest;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-class Guest {
-    private String firstName;
-    private String lastName;
-    private int lengthOfStay;
-    private Room reservedRoom;
-    
-    public Guest(String firstName, String lastName, int lengthOfStay, Room reservedRoom) {
-        this.firstName = firstName;
-        this.lastName = lastName;
-        this.lengthOfStay = lengthOfStay;
-        this.reservedRoom = reservedRoom;
+    // Menu case 8: method for checking if sufficient rooms for a group
+    public boolean checkGroupRoomAvailability(int numberOfRooms, Room.RoomClass roomClass) {
+        return checkGroupRoomAvailability(numberOfRooms, roomClass, LocalDate.now(), LocalDate.now().plusDays(1));
+    }
 
+    public boolean checkGroupRoomAvailability(int numberOfRooms, Room.RoomClass roomClass, LocalDate checkIn, LocalDate checkOut) {
+        return countAvailableRooms(roomClass, checkIn, checkOut) >= numberOfRooms;
     }
 
-    public String getFirstName() {
-        return firstName;
+    // Number of rooms of the class free for every night from checkIn up to checkOut
+    public int countAvailableRooms(Room.RoomClass roomClass, LocalDate checkIn, LocalDate checkOut) {
+        long start = System.nanoTime();
+        ReentrantLock lock = classLocks.get(roomClass);
+        lock.lock();
+        try {
+            calendar.rollTo(roomClass, LocalDate.now());
+            return calendar.countFree(roomClass, checkIn, checkOut);
+        } finally {
+            lock.unlock();
+            metrics.record(HotelMetrics.Operation.AVAILABILITY, roomClass, HotelMetrics.Outcome.OK, start);
+        }
     }
 
-    public String getLastName() {
-        return lastName;
+    // Menu case 9: Method to delete a reservation based on room number (the earliest stay booked on that room)
+    public void deleteReservation(int roomNumber) {
+        Reservation removed = cancelReservation(roomNumber, null);
+        if (removed != null) {
+            System.out.println("Reservation for room number " + roomNumber + " from " + removed.getCheckIn() + " has been deleted.");
+        } else {
+            System.out.println("No reservation found for room number " + roomNumber);
+        }
     }
 
-    public int getLengthOfStay() {
-        return lengthOfStay;
+    public void deleteReservation(int roomNumber, LocalDate checkIn) {
+        Reservation removed = cancelReservation(roomNumber, checkIn);
+        if (removed != null) {
+            System.out.println("Reservation for room number " + roomNumber + " from " + checkIn + " has been deleted.");
+        } else {
+            System.out.println("No reservation found for room number " + roomNumber + " from " + checkIn);
+        }
     }
 
-    public Room getReservedRoom() {
-        return reservedRoom;
+    // Cancels the stay and waits for the journal without reporting to the console; null if there is no such stay
+    public Reservation cancelReservation(int roomNumber, LocalDate checkIn) {
+        Reservation removed = removeStay(roomNumber, checkIn);
+        syncJournal();
+        return removed;
     }
 
-}
+    // Removes the stay as removeReservation does, recording the cancellation in the metrics
+    private Reservation removeStay(int roomNumber, LocalDate checkIn) {
+        long start = System.nanoTime();
+        Reservation removed = removeReservation(roomNumber, checkIn, LocalDate.now(), true);
+        Room room = room(roomNumber);
+        metrics.record(HotelMetrics.Operation.CANCEL, room == null ? null : room.getRoomClass(),
+            removed == null ? HotelMetrics.Outcome.NOT_FOUND : HotelMetrics.Outcome.OK, start);
+        return removed;
+    }
 
-class Reservation {
-    private Guest guest;
-    private Room room;
+    // Removes the stay starting on checkIn, or the earliest stay on the room if checkIn is null, as cancelled on the day
+    // given. With promote, waitlisted stays that now fit are booked; a replay leaves that to the journal records that follow
+    private Reservation removeReservation(int roomNumber, LocalDate checkIn, LocalDate cancelledOn, boolean promote) {
+        Room room = room(roomNumber);
+        if (room == null) {
+            return null;
+        }
+        ReentrantLock lock = classLocks.get(room.getRoomClass());
+        lock.lock();
+        try {
+            TreeMap<LocalDate, Reservation> bookings = bookingsByRoom.get(roomNumber);
+            if (bookings == null || bookings.isEmpty()) {
+                return null;
+            }
+            Reservation toRemove = bookings.get(checkIn == null ? bookings.firstKey() : checkIn);
+            if (toRemove == null) {
+                return null;
+            }
+            detach(room, bookings, toRemove, ReservationEvent.Type.CANCELLED);
+            bookingTotals.recordCancellation(toRemove);
+            if (archive != null) {
+                archive.append(StayArchive.CANCELLED, toRemove, cancelledOn);
+            }
+            if (journal != null) {
+                journal.appendCancellation(toRemove, cancelledOn);
+            }
+            if (promote) {
+                // Stays that could now fit check in from the end of the room's previous stay up to the end of this one
+                Map.Entry<LocalDate, Reservation> previous = bookings.lowerEntry(toRemove.getCheckIn());
+                promoteWaitlisted(room.getRoomClass(), previous == null ? LocalDate.MIN : previous.getValue().getCheckOut(), toRemove.getCheckOut());
+            }
+            return toRemove;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-    public Reservation(Guest guest, Room room) {
-        this.guest = guest;
-        this.room = room;
-        room.setAvailable(false); // Mark the room as not available
+    // Books the waitlisted stays checking in from..to-1 that now fit, best first; the caller must hold the class lock
+    private void promoteWaitlisted(Room.RoomClass roomClass, LocalDate from, LocalDate to) {
+        Waitlist waitlist = waitlists.get(roomClass);
+        if (waitlist.size() == 0) {
+            return;
+        }
+        waitlist.dropBefore(calendar.today(roomClass));
+        waitlist.promote(from, to, entry -> {
+            long start = System.nanoTime();
+            LocalDate checkOut = entry.checkIn.plusDays(entry.lengthOfStay);
+            Reservation reservation = calendar.covers(roomClass, entry.checkIn, checkOut)
+                ? bookAllocated(entry.firstName, entry.lastName, entry.lengthOfStay, roomClass, entry.bedType, entry.checkIn, checkOut)
+                : null;
+            if (reservation != null) {
+                // After the booking, so a replay never finds the stay both gone from the waitlist and without a room
+                if (journal != null) {
+                    journal.appendWaitlistRemoved(roomClass, entry);
+                }
+                metrics.record(HotelMetrics.Operation.PROMOTE, roomClass, HotelMetrics.Outcome.OK, start);
+            }
+            return reservation;
+        });
     }
 
-    public Guest getGuest() {
-        return guest;
+    // Passes the new occupancy of each night of a stay to the pricing engine; the caller must hold the class lock
+    private void refreshPricing(Room.RoomClass roomClass, LocalDate checkIn, LocalDate checkOut) {
+        int total = calendar.roomCount(roomClass);
+        // Nights before today have no price left to change, and their slots now hold nights at the end of the horizon
+        for (long d = Math.max(checkIn.toEpochDay(), calendar.today(roomClass).toEpochDay()); d < checkOut.toEpochDay(); d++) {
+            pricing.occupancyChanged(roomClass, d, calendar.bookedCount(roomClass, d), total);
+        }
     }
 
-    public Room getRoom() {
-        return room;
+    // Sets how rooms are chosen for new stays and groups that are not kept together; matching-bed by default
+    public void setAllocationStrategy(AllocationStrategy allocation) {
+        this.allocation = allocation;
     }
-}
 
-public class HotelManagementSystem {
-    private ArrayList<Room> rooms = new ArrayList<>();
-    private ArrayList<Guest> guests = new ArrayList<>();
-    private ArrayList<Reservation> reservations = new ArrayList<>();
+    // Replaces the pricing rules and re-tiers every night of the horizon under the new thresholds
+    public void setPricingRules(PricingRules rules) {
+        pricing.setRules(rules);
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            ReentrantLock lock = classLocks.get(roomClass);
+            lock.lock();
+            try {
+                calendar.rollTo(roomClass, LocalDate.now());
+                LocalDate today = calendar.today(roomClass);
+                refreshPricing(roomClass, today, today.plusDays(HORIZON_NIGHTS));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 
-    // Method to initiliase the hotel room allocations
-    public void initializeRooms() {
-        // Standard Rooms
-        for (int i = 1; i <= 250; i++) {
-            rooms.add(new Room(i, Room.RoomClass.STANDARD, 1000));
+    // Price of each night of a stay in the class, without booking it, from the rate of the room a booking would be given
+    // (see quoteBaseRate)
+    public int[] quoteNightlyRates(Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn, int lengthOfStay) {
+        if (calendar.roomCount(roomClass) == 0) {
+            throw new IllegalArgumentException("The hotel has no " + roomClass + " rooms");
         }
-        // Deluxe Rooms
-        for (int i = 251; i <= 500; i++) {
-            rooms.add(new Room(i, Room.RoomClass.DELUXE, 1200));
+        long start = System.nanoTime();
+        int baseRate = quoteBaseRate(roomClass, bedType, checkIn, lengthOfStay);
+        int[] rates = pricing.nightlyRates(baseRate, roomClass, bedType, checkIn, lengthOfStay);
+        metrics.record(HotelMetrics.Operation.QUOTE, roomClass, HotelMetrics.Outcome.OK, start);
+        return rates;
+    }
+
+    // Where every room of the class has one rate, as in the default layout, that rate, with no booking lock taken so
+    // quotes never hold up reservations. With rates set per range of rooms, the rate of the room the allocation strategy
+    // would give the stay now, picked under the class lock; a stay no room is free for is quoted at the lowest rate
+    private int quoteBaseRate(Room.RoomClass roomClass, Room.BedType bedType, LocalDate checkIn, int lengthOfStay) {
+        int[] range = baseRates.get(roomClass);
+        if (range[0] == range[1]) {
+            return range[0];
         }
-        // Superior Rooms
-        for (int i = 501; i <= 530; i++) {
-            rooms.add(new Room(i, Room.RoomClass.SUPERIOR, 1800));
+        LocalDate checkOut = checkIn.plusDays(lengthOfStay);
+        ReentrantLock lock = classLocks.get(roomClass);
+        lock.lock();
+        try {
+            calendar.rollTo(roomClass, LocalDate.now());
+            LocalDate from = checkIn.isBefore(calendar.today(roomClass)) ? calendar.today(roomClass) : checkIn;
+            Room room = !from.isBefore(checkOut) || !calendar.covers(roomClass, from, checkOut) ? null : allocateRoom(roomClass, bedType, from, checkOut);
+            return room == null ? range[0] : room.getRate();
+        } finally {
+            lock.unlock();
         }
     }
 
-    // Menu case 1: Method to display all available rooms
-    public void displayAvailableRooms() {
-        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
-            System.out.println("Available " + roomClass + " rooms:");
-            rooms.stream()
-                .filter(r -> r.getRoomClass() == roomClass && r.isAvailable())
-                .forEach(r -> System.out.println("Room Number: " + r.getRoomNumber()));
+    // Takes a stay out of every live structure, frees its nights and publishes its removal as the event type; the caller
+    // must hold the class lock
+    private void detach(Room room, TreeMap<LocalDate, Reservation> bookings, Reservation reservation, ReservationEvent.Type type) {
+        bookings.remove(reservation.getCheckIn());
+        reservations.remove(reservation.getId());
+        byCheckOut.get(room.getRoomClass()).remove(reservation);
+        guestNameIndex.remove(reservation);
+        guestSearch.addLive(reservation.getGuest().getFirstName(), reservation.getGuest().getLastName(), -1);
+        alphabeticalReservations.remove(reservation);
+        calendar.release(room, reservation.getCheckIn(), reservation.getCheckOut());
+        refreshPricing(room.getRoomClass(), reservation.getCheckIn(), reservation.getCheckOut());
+        events.publish(type, room, reservation);
+        if (bookings.isEmpty()) {
+            room.setAvailable(true); // Mark the room as available again once no stays are held on it
+            freeRoomIndex.markFree(room);
+            events.publish(ReservationEvent.Type.ROOM_FREED, room, null);
         }
     }
 
-    // Menu case 2: method to display room details for a class
-    public void displayRoomDetails(Room.RoomClass roomClass) {
-        int reservedCount = 0;
-        int availableCount = 0;
-        int totalIncome = 0;
-        
-        for (Room room : rooms) {
-            if (room.getRoomClass() == roomClass) {
-                if (room.isAvailable()) {
-                    availableCount++;
-                } else {
-                    reservedCount++;
-                    totalIncome += room.getRate();
+    // Moves every stay that checked out on or before today from the live reservations to the archive, keeping its
+    // income in the totals. Returns the number of stays moved; nothing is moved while persistence is off
+    public int archivePastStays(LocalDate today) throws IOException {
+        if (archive == null) {
+            return 0;
+        }
+        int archived = 0;
+        archiveSweep.writeLock().lock();
+        try {
+            for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+                ReentrantLock lock = classLocks.get(roomClass);
+                lock.lock();
+                try {
+                    // Only the stays at the front of the check-out order are visited, stopping at the first still in the hotel
+                    TreeSet<Reservation> checkOuts = byCheckOut.get(roomClass);
+                    while (!checkOuts.isEmpty() && !checkOuts.first().getCheckOut().isAfter(today)) {
+                        Reservation past = checkOuts.first();
+                        Room room = past.getRoom();
+                        detach(room, bookingsByRoom.get(room.getRoomNumber()), past, ReservationEvent.Type.CHECKED_OUT);
+                        archive.append(StayArchive.CHECKED_OUT, past, today);
+                        guestSearch.addPast(past.getGuest().getFirstName(), past.getGuest().getLastName());
+                        journal.appendCheckOut(past, today);
+                        archived++;
+                    }
+                } finally {
+                    lock.unlock();
                 }
             }
+            if (archived > 0) {
+                archive.sync();
+                syncJournal();
+            }
+        } finally {
+            archiveSweep.writeLock().unlock();
         }
-        
-        System.out.println("\nDetailed Information for " + roomClass + " Rooms:");
-        System.out.printf("%-15s %-25s %-30s %-15s%n", "Room Class", "Rooms Reserved", "Rooms Available", "Total Income");
-        System.out.printf("%-15s %-25d %-30d %-15d%n", roomClass, reservedCount, availableCount, totalIncome);
+        return archived;
     }
 
-    // Menu case 3: Method to display reservations (by order of entry)
-    public void displayAllReservations() {
-        System.out.println("\nCurrent Reservations:");
-        System.out.printf("%-15s %-15s %-15s %-15s %-15s %-15s%n", "First Name", "Last Name", "Length of Stay", "Room Reserved", "Room Class", "Bed Type");
-        for (Reservation reservation : reservations) {
-            Guest guest = reservation.getGuest();
-            Room room = reservation.getRoom();
-            System.out.printf("%-15s %-15s %-15d %-15d %-15s %-15s%n", 
-                guest.getFirstName(), 
-                guest.getLastName(), 
-                guest.getLengthOfStay(), 
-                room.getRoomNumber(), 
-                room.getRoomClass(), 
-                room.getBedType());
+    // Cancelled and checked-out stays under the last name (or prefix ending with *), oldest first; empty while persistence is off
+    public List<StayArchive.ArchivedStay> findArchivedStays(String lastName) throws IOException {
+        return archive == null ? new ArrayList<>() : archive.findByLastName(lastName);
+    }
+
+    // Applies a file of bookings and cancellations (see BatchImport for the formats) without the menu. Lines are parsed
+    // on a reader thread while this thread applies them in batches, waiting for the journal once per batch.
+    // Every line that fails is written to the error report with its line number and the reason
+    public void importOperations(Path input, Path errorReport) throws IOException {
+        long start = System.nanoTime();
+        long lines = 0;
+        long booked = 0;
+        long cancelled = 0;
+        long failed = 0;
+        BatchImport batchImport = BatchImport.start(input);
+        try (BufferedWriter errors = Files.newBufferedWriter(errorReport, StandardCharsets.UTF_8)) {
+            List<BatchOperation> batch;
+            while ((batch = batchImport.nextBatch()) != null) {
+                for (BatchOperation operation : batch) {
+                    lines++;
+                    String error = operation.error;
+                    if (error == null && operation.booking) {
+                        // Guests already staying are brought in too: only the nights still to come need a room
+                        LocalDate today = LocalDate.now();
+                        LocalDate checkOut = operation.checkIn.plusDays(operation.lengthOfStay);
+                        LocalDate from = operation.checkIn.isBefore(today) ? today : operation.checkIn;
+                        if (!checkOut.isAfter(today)) {
+                            error = "The stay ended on " + checkOut;
+                        } else if (placeStay(operation.firstName, operation.lastName, operation.lengthOfStay, operation.roomClass, operation.bedType, operation.checkIn, true) != null) {
+                            booked++;
+                        } else {
+                            error = bookingFailure(operation.roomClass, operation.bedType, from, (int) (checkOut.toEpochDay() - from.toEpochDay()));
+                        }
+                    } else if (error == null) {
+                        if (removeStay(operation.roomNumber, operation.checkIn) != null) {
+                            cancelled++;
+                        } else {
+                            error = "No reservation found for room number " + operation.roomNumber
+                                + (operation.checkIn == null ? "" : " from " + operation.checkIn);
+                        }
+                    }
+                    if (error != null) {
+                        failed++;
+                        errors.write("line " + operation.lineNumber + ": " + error + ": " + operation.line);
+                        errors.newLine();
+                    }
+                }
+                syncJournal();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Imported %d lines from %s in %.2f s (%.0f lines/s): %d booked, %d cancelled, %d failed%n",
+            lines, input, seconds, lines / Math.max(seconds, 1e-9), booked, cancelled, failed);
+        if (failed > 0) {
+            System.out.println("Failed lines are listed in " + errorReport);
         }
     }
 
-    // Menu case 4: Method to display reservations (by last name A-to-Z)
-    public void alphabetisedDisplayAllReservations() {
-        System.out.println("\nAlphabetised Current Reservations:");
-        System.out.printf("%-15s %-15s %-15s %-15s %-15s %-15s%n", "First Name", "Last Name", "Length of Stay", "Room Reserved", "Room Class", "Bed Type");
-        
-        // Create a copy of the reservations list to sort, to avoid modifying the original order
-        ArrayList<Reservation> sortedReservations = new ArrayList<>(reservations);
-        
-        // Sort the copied list based on guests' last names
-        Collections.sort(sortedReservations, new Comparator<Reservation>() {
+    // Loads saved reservations from the directory and journals every change from now on, snapshotting every few minutes
+    public void enablePersistence(Path dir) throws IOException {
+        // The archive is opened first, cut back to where the snapshot left it, so the replay below archives every stay
+        // cancelled or checked out since exactly once, whether or not the archive got it to disk before a crash.
+        // Checked-out stays are no longer live, but their income still counts towards the totals
+        archive = StayArchive.open(dir.resolve("archive"), ARCHIVE_SEGMENT_BYTES, ReservationJournal.archiveMark(dir), stay -> {
+            if (stay.status != StayArchive.CHECKED_OUT) {
+                return; // a cancelled stay was never a stay: it neither earned income nor makes its guest a past guest
+            }
+            guestSearch.addPast(stay.firstName, stay.lastName);
+            Room room = room(stay.roomNumber);
+            if (room != null) {
+                bookingTotals.recordArchived(room.getRoomClass(), stay.revenue());
+            }
+        });
+        journal = ReservationJournal.open(dir, new ReservationJournal.Replay() {
+            @Override
+            public void book(int roomNumber, String firstName, String lastName, int lengthOfStay, Room.BedType bedType, int rate, LocalDate checkIn) {
+                restoreBooking(roomNumber, firstName, lastName, lengthOfStay, bedType, rate, checkIn);
+            }
+
+            @Override
+            public void cancel(int roomNumber, LocalDate checkIn, LocalDate on) {
+                removeReservation(roomNumber, checkIn, on, false);
+            }
+
+            @Override
+            public void checkOut(int roomNumber, LocalDate checkIn, LocalDate on) {
+                restoreCheckOut(roomNumber, checkIn, on);
+            }
+
             @Override
-            public int compare(Reservation r1, Reservation r2) {
-                return r1.getGuest().getLastName().compareToIgnoreCase(r2.getGuest().getLastName());
+            public void waitlist(Room.RoomClass roomClass, Waitlist.Entry entry) {
+                waitlists.get(roomClass).restore(entry);
+            }
+
+            @Override
+            public void waitlistRemoved(Room.RoomClass roomClass, LocalDate checkIn, Room.BedType bedType, long sequence) {
+                waitlists.get(roomClass).remove(checkIn, bedType, sequence);
             }
         });
-        
-        // Iterate over the sorted list and print each reservation
-        for (Reservation reservation : sortedReservations) {
-            Guest guest = reservation.getGuest();
-            Room room = reservation.getRoom();
-            System.out.printf("%-15s %-15s %-15d %-15d %-15s %-15s%n", 
-                guest.getFirstName(), 
-                guest.getLastName(), 
-                guest.getLengthOfStay(), 
-                room.getRoomNumber(), 
-                room.getRoomClass(), 
-                room.getBedType());
+        // Stays that were still waiting when their check-in passed are not journalled as dropped: replaying them in
+        // order keeps the sequences of later entries, and they are dropped here on every start
+        for (Waitlist waitlist : waitlists.values()) {
+            waitlist.dropBefore(LocalDate.now());
         }
+        archivePastStays(LocalDate.now());
+        guestSearch.flush(); // indexes the replayed names now rather than in the first search
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "reservation-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                if (journal.recordsSinceSnapshot() > 0) {
+                    snapshot();
+                }
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Could not write reservation snapshot: " + e.getMessage());
+            }
+        }, 5, 5, TimeUnit.MINUTES);
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                archivePastStays(LocalDate.now());
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Could not archive past stays: " + e.getMessage());
+            }
+        }, 1, 1, TimeUnit.HOURS);
     }
 
-
-    //Menu case 5: Method to calculate total income
-    public void calculateTotalIncome() {
-        // Map to keep track of rooms reserved and total income per room class
-        Map<Room.RoomClass, Integer[]> incomeData = new HashMap<>();
-    
-        // Initialize the map with all room classes
-        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
-            incomeData.put(roomClass, new Integer[]{0, 0}); // {Rooms Reserved, Total Income}
-        }
-    
-        // Iterate through all reservations to populate the map
-        for (Reservation reservation : reservations) {
-            Room room = reservation.getRoom();
-            Integer[] data = incomeData.get(room.getRoomClass());
-            data[0] += 1; // Increment the count of rooms reserved
-            data[1] += room.getRate(); // Add to the total income
-        }
-    
-        // Display the results in a table format
-        System.out.println("\nTotal Income by Room Class:");
-        System.out.printf("%-15s %-25s %-25s%n", "Room Class", "Rooms Reserved", "Total Income Generated");
-        for (Map.Entry<Room.RoomClass, Integer[]> entry : incomeData.entrySet()) {
-            System.out.printf("%-15s %-25d %-25d%n", entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+    // Writes all current reservations as a snapshot so the journal files before it can be dropped
+    public void snapshot() throws IOException {
+        snapshotLock.lock();
+        try {
+            if (journal != null) {
+                writeSnapshot();
+            }
+        } finally {
+            snapshotLock.unlock();
         }
     }
 
-    // Menu case 6: Method to search for guests by last name
-    public void searchGuestByLastName(String lastName) {
-        System.out.println("\nSearch Results for Last Name: " + lastName);
-        System.out.printf("%-15s %-15s %-15s %-15s %-15s %-15s%n", "First Name", "Last Name", "Length of Stay", "Room Reserved", "Room Class", "Bed Type");
-        boolean found = false;
-        for (Reservation reservation : reservations) {
-            Guest guest = reservation.getGuest();
-            if (guest.getLastName().equalsIgnoreCase(lastName)) {
-                found = true;
-                Room room = reservation.getRoom();
-                System.out.printf("%-15s %-15s %-15d %-15d %-15s %-15s%n", 
-                    guest.getFirstName(), 
-                    guest.getLastName(), 
-                    guest.getLengthOfStay(), 
-                    room.getRoomNumber(), 
-                    room.getRoomClass().toString(), 
-                    room.getBedType().toString());
-            }
+    // The caller must hold snapshotLock
+    private void writeSnapshot() throws IOException {
+        List<Reservation> current;
+        Map<Room.RoomClass, List<Waitlist.Entry>> waitlisted = new EnumMap<>(Room.RoomClass.class);
+        long firstGeneration;
+        long[] archiveMark;
+        // Pause bookings in every class just long enough to copy the reservations and waitlists and start a new journal file
+        Room.RoomClass[] roomClasses = Room.RoomClass.values();
+        for (Room.RoomClass roomClass : roomClasses) {
+            classLocks.get(roomClass).lock();
         }
-        if (!found) {
-            System.out.println("No bookings found under the last name: " + lastName);
+        try {
+            current = new ArrayList<>(reservations.values());
+            for (Room.RoomClass roomClass : roomClasses) {
+                waitlisted.put(roomClass, waitlists.get(roomClass).entries());
+            }
+            firstGeneration = journal.rotate();
+            // Stays are archived under their class lock, so the archive up to here matches the journal before the rotation
+            archiveMark = archive.mark();
+        } finally {
+            for (int i = roomClasses.length - 1; i >= 0; i--) {
+                classLocks.get(roomClasses[i]).unlock();
+            }
         }
+        // The journal files the snapshot replaces hold the only durable record of cancellations archived since the
+        // last sync, so the archive must be on disk before they are dropped
+        archive.sync();
+        journal.writeSnapshot(current, waitlisted, firstGeneration, archiveMark);
     }
 
-    // Menu case 7: Method to reserve a room
-    public void reserveRoom(String firstName, String lastName, int lengthOfStay, Room.RoomClass roomClass, Room.BedType bedType) {
-        for (Room room : rooms) {
-            if (room.getRoomClass() == roomClass && room.isAvailable()) {
-                room.setBedType(bedType);
-                Guest guest = new Guest(firstName, lastName, lengthOfStay, room);
-                Reservation reservation = new Reservation(guest, room);
-                reservations.add(reservation);
-                guests.add(guest); 
-                System.out.println("Room " + room.getRoomNumber() + " reserved for " + firstName + " " + lastName);
-                return;
-            }
+    // Delivers the events already published to every subscriber, then takes a final snapshot and closes the journal
+    public void shutdown() throws IOException {
+        events.close();
+        if (journal == null) {
+            return;
+        }
+        // Lets a running snapshot or sweep finish rather than interrupting it, which would close the journal file under it
+        snapshotScheduler.shutdown();
+        try {
+            snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshotLock.lock();
+        archiveSweep.writeLock().lock();
+        try {
+            writeSnapshot();
+            journal.close();
+            journal = null;
+            archive.close();
+            archive = null;
+        } finally {
+            archiveSweep.writeLock().unlock();
+            snapshotLock.unlock();
         }
-        System.out.println("No available rooms of the requested type.");
     }
 
-    // Menu case 8: method for checking if sufficient rooms for a group
-    public boolean checkGroupRoomAvailability(int numberOfRooms, Room.RoomClass roomClass) {
-        long availableRooms = rooms.stream()
-                                    .filter(room -> room.getRoomClass() == roomClass && room.isAvailable())
-                                    .count();
-        return availableRooms >= numberOfRooms;
+    // Re-creates a saved reservation on the room it was booked on
+    private void restoreBooking(int roomNumber, String firstName, String lastName, int lengthOfStay, Room.BedType bedType, int rate, LocalDate checkIn) {
+        Room room = room(roomNumber);
+        if (room == null) {
+            return;
+        }
+        ReentrantLock lock = classLocks.get(room.getRoomClass());
+        lock.lock();
+        try {
+            bookRoom(room, firstName, lastName, lengthOfStay, bedType, checkIn, rate);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    // Menu case 9: Method to delete a reservation based on room number
-    public void deleteReservation(int roomNumber) {
-        Reservation toRemove = null;
-        for (Reservation reservation : reservations) {
-            if (reservation.getRoom().getRoomNumber() == roomNumber) {
-                toRemove = reservation;
-                break;
+    // Replays a stay moving to the archive as archivePastStays moved it, its income staying in the totals
+    private void restoreCheckOut(int roomNumber, LocalDate checkIn, LocalDate on) {
+        Room room = room(roomNumber);
+        if (room == null) {
+            return;
+        }
+        ReentrantLock lock = classLocks.get(room.getRoomClass());
+        lock.lock();
+        try {
+            TreeMap<LocalDate, Reservation> bookings = bookingsByRoom.get(roomNumber);
+            Reservation reservation = bookings == null ? null : bookings.get(checkIn);
+            if (reservation != null) {
+                detach(room, bookings, reservation, ReservationEvent.Type.CHECKED_OUT);
+                archive.append(StayArchive.CHECKED_OUT, reservation, on);
+                guestSearch.addPast(reservation.getGuest().getFirstName(), reservation.getGuest().getLastName());
             }
+        } finally {
+            lock.unlock();
         }
-        if (toRemove != null) {
-            reservations.remove(toRemove);
-            toRemove.getRoom().setAvailable(true); // Mark the room as available again
-            System.out.println("Reservation for room number " + roomNumber + " has been deleted.");
-        } else {
-            System.out.println("No reservation found for room number " + roomNumber);
+    }
+
+    private void syncJournal() {
+        if (journal != null) {
+            journal.sync();
         }
     }
 
@@ -321,10 +5785,181 @@ public class HotelManagementSystem {
         }
     }
 
+    // error handling for if an invalid date is entered into scanner; a blank line means today
+    private static LocalDate safeReadDate(Scanner scanner) {
+        while (true) {
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty()) {
+                return LocalDate.now();
+            }
+            try {
+                return LocalDate.parse(line);
+            } catch (DateTimeParseException e) {
+                System.out.print("Invalid date. Please enter a date as YYYY-MM-DD: ");
+            }
+        }
+    }
+
+    // --portfolio runs one property per layout file, each saving under its own directory of the data directory. With
+    // --http it serves the booking API for every property; otherwise it prints the portfolio income and exits
+    private static void runPortfolio(List<Path> layoutFiles, Path dataDir, Path pricingFile, AllocationStrategy allocation,
+                                     Map<Room.RoomClass, Integer> priorityPlaces, int httpPort) throws IOException {
+        Portfolio portfolio = Portfolio.load(layoutFiles, dataDir);
+        PricingRules rules = pricingFile == null ? null : PricingRules.load(pricingFile);
+        for (String name : portfolio.propertyNames()) {
+            HotelManagementSystem property = portfolio.property(name);
+            property.getMetrics().register(name);
+            if (rules != null) {
+                property.setPricingRules(rules);
+            }
+            if (allocation != null) {
+                property.setAllocationStrategy(allocation);
+            }
+            priorityPlaces.forEach(property::setPriorityAllowance);
+        }
+        if (httpPort < 0) {
+            portfolio.displayIncome();
+            portfolio.close();
+            return;
+        }
+        BookingApi api = BookingApi.start(portfolio, httpPort);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            api.close();
+            try {
+                portfolio.close();
+            } catch (IOException e) {
+                System.err.println("Could not write reservation snapshot: " + e.getMessage());
+            }
+        }, "booking-api-shutdown"));
+        System.out.println("Booking API listening on port " + api.port() + " for " + String.join(", ", portfolio.propertyNames()));
+    }
+
+    // With --metrics, the operation counts and latencies of the run are written to the file on exit
+    private static void writeMetrics(HotelManagementSystem system, Path file) {
+        if (file == null) {
+            return;
+        }
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            system.getMetrics().dump(out);
+        } catch (IOException e) {
+            System.err.println("Could not write metrics: " + e.getMessage());
+        }
+    }
+
     // Main method to run the application
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        BookingApi.enableNoDelay();
         HotelManagementSystem system = new HotelManagementSystem();
-        system.initializeRooms();
+
+        // Reservations are saved under hotel-data unless another directory is given with --data-dir
+        Path dataDir = Paths.get("hotel-data");
+        Path roomStore = null;
+        Path exportFile = null;
+        Path importFile = null;
+        int httpPort = -1;
+        Path metricsFile = null;
+        Path pricingFile = null;
+        Path layoutFile = null;
+        List<Path> portfolioLayouts = null;
+        AllocationStrategy allocation = null;
+        Map<Room.RoomClass, Integer> priorityPlaces = new EnumMap<>(Room.RoomClass.class);
+        Path eventsFile = null;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--data-dir")) {
+                dataDir = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--room-store")) {
+                roomStore = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--export")) {
+                exportFile = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--import")) {
+                importFile = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--http")) {
+                httpPort = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--metrics")) {
+                metricsFile = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--pricing")) {
+                pricingFile = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--layout")) {
+                layoutFile = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--allocation")) {
+                allocation = AllocationStrategy.forName(args[i + 1]);
+            } else if (args[i].equals("--events")) {
+                eventsFile = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--priority")) {
+                for (String allowance : args[i + 1].split(",")) {
+                    String[] parts = allowance.split("=");
+                    if (parts.length != 2) {
+                        throw new IllegalArgumentException("expected --priority CLASS=stays[,CLASS=stays...]");
+                    }
+                    priorityPlaces.put(Room.RoomClass.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(parts[1].trim()));
+                }
+            } else if (args[i].equals("--portfolio")) {
+                portfolioLayouts = Arrays.stream(args[i + 1].split(",")).map(Paths::get).collect(Collectors.toList());
+            }
+        }
+        if (portfolioLayouts != null) {
+            runPortfolio(portfolioLayouts, dataDir, pricingFile, allocation, priorityPlaces, httpPort);
+            return;
+        }
+        // With --layout the rooms are read from a layout file, through a room store cached next to it. With --room-store
+        // the layout is mapped from that file, which is created from the default layout the first time
+        if (layoutFile != null) {
+            system.initializeRooms(HotelLayout.load(layoutFile));
+        } else if (roomStore != null && Files.exists(roomStore)) {
+            system.initializeRooms(RoomStore.open(roomStore));
+        } else {
+            system.initializeRooms();
+            if (roomStore != null) {
+                system.saveRooms(roomStore);
+            }
+        }
+        system.enablePersistence(dataDir);
+        system.getMetrics().register();
+        // --pricing sets rates from occupancy, lead time and bed type; without it every room sells at its base rate
+        if (pricingFile != null) {
+            system.setPricingRules(PricingRules.load(pricingFile));
+        }
+        // --allocation first-free|matching-bed|spread-zones picks how rooms are chosen for new stays
+        if (allocation != null) {
+            system.setAllocationStrategy(allocation);
+        }
+        // --priority STANDARD=5 lets that many waitlisted stays a night go before the rest when a cancellation frees a room
+        priorityPlaces.forEach(system::setPriorityAllowance);
+        // --events appends every change from now on to the file as JSON lines
+        if (eventsFile != null) {
+            system.getEvents().subscribe("event-log", new EventLogWriter(eventsFile));
+        }
+        Path finalMetricsFile = metricsFile;
+
+        // --import applies a file of bookings and cancellations and --export writes the saved reservations to a file;
+        // either one runs without showing the menu
+        if (importFile != null || exportFile != null) {
+            if (importFile != null) {
+                system.importOperations(importFile, Paths.get(importFile + ".errors"));
+            }
+            if (exportFile != null) {
+                system.exportReservations(exportFile);
+            }
+            system.shutdown();
+            writeMetrics(system, finalMetricsFile);
+            return;
+        }
+
+        // --http serves the booking API instead of the menu until the process is stopped
+        if (httpPort >= 0) {
+            BookingApi api = BookingApi.start(system, httpPort);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                api.close();
+                try {
+                    system.shutdown();
+                } catch (IOException e) {
+                    System.err.println("Could not write reservation snapshot: " + e.getMessage());
+                }
+                writeMetrics(system, finalMetricsFile);
+            }, "booking-api-shutdown"));
+            System.out.println("Booking API listening on port " + api.port());
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
 
         // Declare reused variables before the switch statement
@@ -332,22 +5967,17 @@ public class HotelManagementSystem {
         String firstName = null;
         String lastName = null;
         int lengthOfStay = 0;
+        LocalDate checkIn = null;
         List<Room.BedType> bedTypes = null;
         Room.BedType bedType = null;
     
-        // Map to associate each RoomClass with its allowed BedTypes
-        Map<Room.RoomClass, List<Room.BedType>> allowedBedTypes = new HashMap<>();
-        allowedBedTypes.put(Room.RoomClass.STANDARD, List.of(Room.BedType.TWIN, Room.BedType.DOUBLE));
-        allowedBedTypes.put(Room.RoomClass.DELUXE, List.of(Room.BedType.QUEEN_SIZE));
-        allowedBedTypes.put(Room.RoomClass.SUPERIOR, List.of(Room.BedType.QUEEN_SIZE, Room.BedType.KING_SIZE));
-    
         while (true) {
             System.out.println("\nHotel Management System Menu:");
             System.out.println("1. Display all available rooms as a list");
             System.out.println("2. Display detailed room information by class");
             System.out.println("3. Display all reservations");
             System.out.println("4. Display all reservations alphabetically by last name");
-            System.out.println("5. Display total income from bookings");            
+            System.out.println("5. Display total income and revenue analytics");            
             System.out.println("6. Search for guest by last name");
             System.out.println("7. Create a new single reservation");
             System.out.println("8. Create a new group reservation");
@@ -396,15 +6026,42 @@ public class HotelManagementSystem {
                     break;
 
                 case 4:
-                    system.alphabetisedDisplayAllReservations();
+                    System.out.print("Enter last name to start from (blank for the whole list): ");
+                    String startLastName = scanner.nextLine().trim();
+                    if (startLastName.isEmpty()) {
+                        system.alphabetisedDisplayAllReservations();
+                        break;
+                    }
+                    // Show 20 reservations at a time, each page continuing from the last one shown
+                    List<Reservation> page = system.alphabetisedPageFrom(startLastName, 20);
+                    while (true) {
+                        system.printReservations("\nAlphabetised Reservations from " + startLastName + ":", page);
+                        if (page.size() < 20) {
+                            break;
+                        }
+                        System.out.print("Press Enter for the next page, or q to return to the menu: ");
+                        if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                            break;
+                        }
+                        page = system.alphabetisedPageAfter(page.get(page.size() - 1), 20);
+                    }
                     break;
 
                 case 5:
                     system.calculateTotalIncome();
+                    System.out.print("Enter first night of the analytics window (YYYY-MM-DD, blank for today): ");
+                    LocalDate windowStart = safeReadDate(scanner);
+                    int windowNights = 0;
+                    do {
+                        System.out.print("Enter number of nights in the window (minimum 1): ");
+                        windowNights = safeReadInt(scanner);
+                        scanner.nextLine(); // Consume the leftover newline
+                    } while (windowNights < 1);
+                    system.displayRevenueAnalytics(windowStart, windowStart.plusDays(windowNights));
                     break;
 
                 case 6:
-                    System.out.print("Enter last name to search: ");
+                    System.out.print("Enter last name to search (end with * to match a prefix; similar names are suggested if none match): ");
                     String searchLastName = scanner.nextLine();
                     system.searchGuestByLastName(searchLastName);
                     break;
@@ -415,6 +6072,9 @@ public class HotelManagementSystem {
     
                     System.out.print("Enter last name: ");
                     lastName = scanner.nextLine();
+
+                    System.out.print("Enter check-in date (YYYY-MM-DD, blank for today): ");
+                    checkIn = safeReadDate(scanner);
     
                     do {
                         System.out.print("Enter length of stay (minimum 1 day): ");
@@ -450,7 +6110,11 @@ public class HotelManagementSystem {
                     }
     
                     // Get the allowed bed types for the selected room class
-                    bedTypes = allowedBedTypes.get(roomClass);
+                    bedTypes = system.allowedBedTypes(roomClass);
+                    if (bedTypes.isEmpty()) {
+                        System.out.println("The hotel has no " + roomClass + " rooms.");
+                        break;
+                    }
                     bedType = null;
                     while (bedType == null) {
                         System.out.println("Choose bed type:");
@@ -466,7 +6130,13 @@ public class HotelManagementSystem {
                         }
                     }
     
-                    system.reserveRoom(firstName, lastName, lengthOfStay, roomClass, bedType);
+                    if (system.reserveRoom(firstName, lastName, lengthOfStay, roomClass, bedType, checkIn) == null
+                        && system.isBookable(roomClass, bedType, checkIn, lengthOfStay)) {
+                        System.out.print("Add the guest to the waitlist? (y/n): ");
+                        if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                            system.waitlistRoom(firstName, lastName, lengthOfStay, roomClass, bedType, checkIn);
+                        }
+                    }
                     break;
 
                 case 8:
@@ -476,15 +6146,14 @@ public class HotelManagementSystem {
                         numberOfRooms = safeReadInt(scanner);
                         scanner.nextLine(); // Consume the leftover newline
                 
-                        if (numberOfRooms > 3) {
-                            System.out.println("You cannot book more than 3 rooms in a group booking. Please try again.");
-                        } else if (numberOfRooms <= 0) {
+                        if (numberOfRooms <= 0) {
                             System.out.println("Please enter a valid number of rooms to book.");
                         }
-                    } while (numberOfRooms > 3 || numberOfRooms <= 0);
+                    } while (numberOfRooms <= 0);
                 
                     // Select room class for all rooms in the booking
                     roomClass = null;
+                    bedTypes = null;
                     while (roomClass == null) {
                         System.out.println("Choose room class for all rooms:");
                         System.out.println("1. STANDARD");
@@ -509,11 +6178,24 @@ public class HotelManagementSystem {
                         }
                     }
 
-                    if (!system.checkGroupRoomAvailability(numberOfRooms, roomClass)) {
+                    bedTypes = system.allowedBedTypes(roomClass);
+                    if (bedTypes.isEmpty()) {
+                        System.out.println("The hotel has no " + roomClass + " rooms.");
+                        break;
+                    }
+
+                    System.out.print("Enter check-in date for the group (YYYY-MM-DD, blank for today): ");
+                    checkIn = safeReadDate(scanner);
+
+                    if (!system.checkGroupRoomAvailability(numberOfRooms, roomClass, checkIn, checkIn.plusDays(1))) {
                         System.out.println("Unfortunately, we do not have enough available rooms of the requested type for your group.");
                         break; // Exit the current iteration or switch case
                     }
+
+                    System.out.print("Keep the group in adjacent rooms where possible? (y/n): ");
+                    boolean preferAdjacent = scanner.nextLine().trim().equalsIgnoreCase("y");
                 
+                    List<GuestRequest> groupRequests = new ArrayList<>();
                     for (int roomNumber = 1; roomNumber <= numberOfRooms; roomNumber++) {
                         System.out.println("Booking details for room " + roomNumber + ":");
                 
@@ -532,8 +6214,6 @@ public class HotelManagementSystem {
                             }
                         } while (lengthOfStay < 1);
                 
-                        // Get the allowed bed types for the selected room class
-                        bedTypes = allowedBedTypes.get(roomClass);
                         bedType = null;
                         while (bedType == null) {
                             System.out.println("Choose bed type:");
@@ -550,8 +6230,9 @@ public class HotelManagementSystem {
                             }
                         }
                 
-                        system.reserveRoom(firstName, lastName, lengthOfStay, roomClass, bedType);
+                        groupRequests.add(new GuestRequest(firstName, lastName, lengthOfStay, bedType));
                     }
+                    system.reserveGroup(groupRequests, roomClass, checkIn, preferAdjacent);
                     break;  
         
                         
@@ -564,6 +6245,8 @@ public class HotelManagementSystem {
 
                 case 10:
                     System.out.println("Exiting system...");
+                    system.shutdown();
+                    writeMetrics(system, finalMetricsFile);
                     scanner.close();
                     return;
     
@@ -573,4 +6256,4 @@ public class HotelManagementSystem {
         }
     }
 
-}
\ No newline at end of file
+}
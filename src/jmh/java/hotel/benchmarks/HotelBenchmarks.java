@@ -0,0 +1,153 @@
+package hotel.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The booking, search, cancellation and reporting paths, over every combination of hotel size, rooms booked tonight and
+// stays booked ahead. The hotel and its operations come from HotelBenchmark in src/test/java; JMH does not allow
+// benchmarks in the default package, and a class in a package can only reach the default package reflectively, so the
+// public HotelBenchmark.operations is looked up once per trial and each benchmark just calls one operation and hands its
+// result to the Blackhole.
+// Run with: java -jar target/benchmarks.jar [-p rooms=530,100000] [-p reservations=0,50000] [-p occupancy=0.5,0.9] [-rf json]
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotelBenchmarks {
+    @Param({"530", "10000", "100000"})
+    int rooms;
+
+    @Param({"0", "50000"})
+    int reservations;
+
+    @Param({"0.5", "0.9"})
+    double occupancy;
+
+    private PrintStream console;
+    private Supplier<Object> bookAndCancel;
+    private Supplier<Object> groupBookAndCancel;
+    private Supplier<Object> quote7Nights;
+    private Supplier<Object> groupAvailability;
+    private Supplier<Object> searchHit;
+    private Supplier<Object> searchPrefix;
+    private Supplier<Object> searchMiss;
+    private Supplier<Object> totalIncome;
+    private Supplier<Object> revenueAnalytics30Nights;
+    private Supplier<Object> roomDetails;
+    private Supplier<Object> availableRoomsReport;
+    private Supplier<Object> allReservationsReport;
+    private Supplier<Object> alphabeticalReport;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void buildHotel() throws ReflectiveOperationException {
+        // The booking methods report to the console; that output is discarded while measuring
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Method build = Class.forName("HotelBenchmark").getMethod("operations", int.class, double.class, int.class);
+        Map<String, Supplier<Object>> operations = (Map<String, Supplier<Object>>) build.invoke(null, rooms, occupancy, reservations);
+        bookAndCancel = operations.get("bookAndCancel");
+        groupBookAndCancel = operations.get("groupBookAndCancel");
+        quote7Nights = operations.get("quote7Nights");
+        groupAvailability = operations.get("groupAvailability");
+        searchHit = operations.get("searchHit");
+        searchPrefix = operations.get("searchPrefix");
+        searchMiss = operations.get("searchMiss");
+        totalIncome = operations.get("totalIncome");
+        revenueAnalytics30Nights = operations.get("revenueAnalytics30Nights");
+        roomDetails = operations.get("roomDetails");
+        availableRoomsReport = operations.get("availableRoomsReport");
+        allReservationsReport = operations.get("allReservationsReport");
+        alphabeticalReport = operations.get("alphabeticalReport");
+    }
+
+    @TearDown
+    public void restoreConsole() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void bookAndCancel(Blackhole blackhole) {
+        blackhole.consume(bookAndCancel.get());
+    }
+
+    @Benchmark
+    public void groupBookAndCancel(Blackhole blackhole) {
+        blackhole.consume(groupBookAndCancel.get());
+    }
+
+    @Benchmark
+    public void quote7Nights(Blackhole blackhole) {
+        blackhole.consume(quote7Nights.get());
+    }
+
+    @Benchmark
+    public void groupAvailability(Blackhole blackhole) {
+        blackhole.consume(groupAvailability.get());
+    }
+
+    @Benchmark
+    public void searchHit(Blackhole blackhole) {
+        blackhole.consume(searchHit.get());
+    }
+
+    @Benchmark
+    public void searchPrefix(Blackhole blackhole) {
+        blackhole.consume(searchPrefix.get());
+    }
+
+    @Benchmark
+    public void searchMiss(Blackhole blackhole) {
+        blackhole.consume(searchMiss.get());
+    }
+
+    @Benchmark
+    public void totalIncome(Blackhole blackhole) {
+        blackhole.consume(totalIncome.get());
+    }
+
+    @Benchmark
+    public void revenueAnalytics30Nights(Blackhole blackhole) {
+        blackhole.consume(revenueAnalytics30Nights.get());
+    }
+
+    @Benchmark
+    public void roomDetails(Blackhole blackhole) {
+        blackhole.consume(roomDetails.get());
+    }
+
+    @Benchmark
+    public void availableRoomsReport(Blackhole blackhole) {
+        blackhole.consume(availableRoomsReport.get());
+    }
+
+    @Benchmark
+    public void allReservationsReport(Blackhole blackhole) {
+        blackhole.consume(allReservationsReport.get());
+    }
+
+    @Benchmark
+    public void alphabeticalReport(Blackhole blackhole) {
+        blackhole.consume(alphabeticalReport.get());
+    }
+}
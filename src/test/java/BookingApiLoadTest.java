@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Load generator for the booking API: starts the API on a local port over a hotel from HotelBenchmark.buildHotel, then
+// has many concurrent clients send a mix of availability checks, bookings with their cancellations, guest searches and
+// income reports. Prints one JSON object per endpoint with the request count, errors and p50/p99/max latency.
+// Run with: java -cp <classes> BookingApiLoadTest [--rooms 530] [--occupancy 0.5] [--clients 200] [--requests 50] [--out results.jsonl]
+class BookingApiLoadTest {
+    private static final String[] ENDPOINTS = {"availability", "reserve", "cancel", "search", "income"};
+
+    public static void main(String[] args) throws Exception {
+        BookingApi.enableNoDelay();
+        int roomCount = 530;
+        double occupancy = 0.5;
+        int clients = 200;
+        int requestsPerClient = 50;
+        Path out = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rooms":
+                    roomCount = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--occupancy":
+                    occupancy = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--requests":
+                    requestsPerClient = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--out":
+                    out = Paths.get(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        HotelManagementSystem system = HotelBenchmark.buildHotel(roomCount, occupancy);
+        // One thread per client, each waiting on its own requests
+        AtomicLong threadCount = new AtomicLong();
+        ExecutorService clientThreads = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "load-client-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Latencies in nanoseconds per endpoint; each client keeps its own lists and they are merged at the end
+        List<List<long[]>> latencies = new ArrayList<>();
+        long[] errorsByEndpoint = new long[ENDPOINTS.length];
+        long elapsed;
+        try (BookingApi api = BookingApi.start(system, 0)) {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(clientThreads).build();
+            String base = "http://localhost:" + api.port();
+            List<Future<long[][]>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                int seed = c;
+                int count = requestsPerClient;
+                results.add(clientThreads.submit(() -> runClient(client, base, new Random(seed), count, errorsByEndpoint)));
+            }
+            for (Future<long[][]> result : results) {
+                List<long[]> perEndpoint = new ArrayList<>();
+                for (long[] samples : result.get()) {
+                    perEndpoint.add(samples);
+                }
+                latencies.add(perEndpoint);
+            }
+            elapsed = System.nanoTime() - start;
+        } finally {
+            clientThreads.shutdownNow();
+        }
+
+        Writer report = out == null ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8) : Files.newBufferedWriter(out, StandardCharsets.UTF_8);
+        try {
+            long total = 0;
+            long errors = 0;
+            for (int e = 0; e < ENDPOINTS.length; e++) {
+                int size = 0;
+                for (List<long[]> perEndpoint : latencies) {
+                    size += perEndpoint.get(e).length;
+                }
+                long[] merged = new long[size];
+                int at = 0;
+                for (List<long[]> perEndpoint : latencies) {
+                    long[] samples = perEndpoint.get(e);
+                    System.arraycopy(samples, 0, merged, at, samples.length);
+                    at += samples.length;
+                }
+                Arrays.sort(merged);
+                total += merged.length;
+                errors += errorsByEndpoint[e];
+                report.write(toJson(ENDPOINTS[e], clients, merged, errorsByEndpoint[e]));
+                report.write(System.lineSeparator());
+            }
+            report.write(String.format(Locale.ROOT, "{\"endpoint\":\"all\",\"clients\":%d,\"requests\":%d,\"errors\":%d,\"seconds\":%.2f,\"requestsPerSecond\":%.1f}",
+                clients, total, errors, elapsed / 1e9, total * 1e9 / elapsed));
+            report.write(System.lineSeparator());
+        } finally {
+            if (out == null) {
+                report.flush();
+            } else {
+                report.close();
+            }
+        }
+    }
+
+    // Sends count requests, each for a random endpoint, and returns the latency of every request grouped by endpoint.
+    // A booking is always followed by the cancellation of the room it got, so occupancy stays steady during the run
+    private static long[][] runClient(HttpClient client, String base, Random random, int count, long[] errorsByEndpoint) throws IOException, InterruptedException {
+        LocalDate today = LocalDate.now();
+        long[][] samples = new long[ENDPOINTS.length][count];
+        int[] sizes = new int[ENDPOINTS.length];
+        for (int i = 0; i < count; i++) {
+            int pick = random.nextInt(10);
+            Room.RoomClass roomClass = Room.RoomClass.values()[random.nextInt(Room.RoomClass.values().length)];
+            LocalDate checkIn = today.plusDays(random.nextInt(300));
+            if (pick < 4) {
+                send(client, HttpRequest.newBuilder(URI.create(base + "/availability?roomClass=" + roomClass + "&checkIn=" + checkIn + "&nights=3")).GET(),
+                    0, samples, sizes, errorsByEndpoint);
+            } else if (pick < 7) {
+                String booking = "{\"firstName\":\"Load\",\"lastName\":\"Client" + random.nextInt(1000) + "\",\"lengthOfStay\":" + (1 + random.nextInt(3))
+                    + ",\"roomClass\":\"" + roomClass + "\",\"bedType\":\"" + Room.BedType.values()[Integer.numberOfTrailingZeros(Room.defaultBeds(roomClass))]
+                    + "\",\"checkIn\":\"" + checkIn + "\"}";
+                HttpResponse<String> booked = send(client, HttpRequest.newBuilder(URI.create(base + "/reservations"))
+                    .POST(HttpRequest.BodyPublishers.ofString(booking)), 1, samples, sizes, errorsByEndpoint);
+                if (booked.statusCode() == 201) {
+                    Map<String, String> reservation = Json.parseObject(booked.body());
+                    send(client, HttpRequest.newBuilder(URI.create(base + "/reservations?roomNumber=" + reservation.get("roomNumber")
+                        + "&checkIn=" + reservation.get("checkIn"))).DELETE(), 2, samples, sizes, errorsByEndpoint);
+                }
+            } else if (pick < 9) {
+                send(client, HttpRequest.newBuilder(URI.create(base + "/guests?lastName=" + HotelBenchmark.name(random.nextInt(1000)))).GET(),
+                    3, samples, sizes, errorsByEndpoint);
+            } else {
+                send(client, HttpRequest.newBuilder(URI.create(base + "/income")).GET(), 4, samples, sizes, errorsByEndpoint);
+            }
+        }
+        for (int e = 0; e < ENDPOINTS.length; e++) {
+            samples[e] = Arrays.copyOf(samples[e], sizes[e]);
+        }
+        return samples;
+    }
+
+    private static HttpResponse<String> send(HttpClient client, HttpRequest.Builder request, int endpoint, long[][] samples, int[] sizes, long[] errorsByEndpoint)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        long latency = System.nanoTime() - start;
+        if (sizes[endpoint] == samples[endpoint].length) {
+            samples[endpoint] = Arrays.copyOf(samples[endpoint], sizes[endpoint] * 2 + 1);
+        }
+        samples[endpoint][sizes[endpoint]++] = latency;
+        // A fully booked class is a normal answer to a booking, anything else in the 4xx/5xx range is an error
+        if (response.statusCode() >= 400 && response.statusCode() != 409) {
+            synchronized (errorsByEndpoint) {
+                errorsByEndpoint[endpoint]++;
+            }
+        }
+        return response;
+    }
+
+    private static String toJson(String endpoint, int clients, long[] sortedLatencies, long errors) {
+        return String.format(Locale.ROOT, "{\"endpoint\":\"%s\",\"clients\":%d,\"requests\":%d,\"errors\":%d,\"p50Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}",
+            endpoint, clients, sortedLatencies.length, errors, percentile(sortedLatencies, 0.50) / 1e6, percentile(sortedLatencies, 0.99) / 1e6,
+            sortedLatencies.length == 0 ? 0 : sortedLatencies[sortedLatencies.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Stress test for the booking core: many threads book, group-book and cancel stays in every class over the same few
+// nights at once, with the journal on. Afterwards it checks that no room holds two stays on one night, that exactly the
+// bookings the threads still hold are live, and that the journal, the calendar and the running totals all agree with
+// the live reservations. Prints one JSON object with the counts and every failure; exits with status 1 on any failure.
+// Run with: java -cp <classes> BookingStressTest [--rooms 530] [--threads 16] [--operations 20000] [--nights 5]
+class BookingStressTest {
+    public static void main(String[] args) throws Exception {
+        int roomCount = 530;
+        int threads = 16;
+        int operationsPerThread = 20_000;
+        int nights = 5;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rooms":
+                    roomCount = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--operations":
+                    operationsPerThread = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--nights":
+                    nights = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        Path dir = Files.createTempDirectory("hotel-stress");
+        HotelManagementSystem system = HotelBenchmark.buildHotel(roomCount, 0);
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        List<List<Reservation>> held = new ArrayList<>();
+        long[] booked = new long[threads];
+        long[] cancelled = new long[threads];
+        long elapsed;
+        try {
+            system.enablePersistence(dir);
+            LocalDate today = LocalDate.now();
+            CountDownLatch startLine = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                List<Reservation> mine = new ArrayList<>();
+                held.add(mine);
+                int worker = t;
+                int operations = operationsPerThread;
+                int window = nights;
+                Thread thread = new Thread(() -> {
+                    try {
+                        startLine.await();
+                        runWorker(system, new Random(worker), operations, today, window, mine, booked, cancelled, worker, failures);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        failures.add("worker " + worker + " failed: " + e);
+                    }
+                }, "stress-" + t);
+                thread.start();
+                workers.add(thread);
+            }
+            long start = System.nanoTime();
+            startLine.countDown();
+            for (Thread thread : workers) {
+                thread.join();
+            }
+            elapsed = System.nanoTime() - start;
+
+            List<Reservation> expected = new ArrayList<>();
+            held.forEach(expected::addAll);
+            checkReservations(system, expected, failures);
+            checkCalendar(system, today, nights + 3, failures);
+            checkTotals(system, failures);
+            checkJournal(system, dir, failures);
+        } finally {
+            system.shutdown();
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        long operations = (long) threads * operationsPerThread;
+        System.out.println(String.format(Locale.ROOT,
+            "{\"rooms\":%d,\"threads\":%d,\"operations\":%d,\"booked\":%d,\"cancelled\":%d,\"live\":%d,\"seconds\":%.2f,\"opsPerSecond\":%.1f,\"failures\":%s}",
+            roomCount, threads, operations, Arrays.stream(booked).sum(), Arrays.stream(cancelled).sum(), system.currentReservations().size(),
+            elapsed / 1e9, operations * 1e9 / elapsed, failures.stream().map(Json::quote).collect(Collectors.joining(",", "[", "]"))));
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    // Half the operations book one stay, one in ten books a small group and the rest cancel one of this thread's own
+    // stays, which must still be there: another thread taking or freeing a room must never touch it
+    private static void runWorker(HotelManagementSystem system, Random random, int operations, LocalDate today, int nights,
+                                  List<Reservation> mine, long[] booked, long[] cancelled, int worker, List<String> failures) {
+        Room.RoomClass[] classes = Room.RoomClass.values();
+        for (int i = 0; i < operations; i++) {
+            int pick = random.nextInt(10);
+            Room.RoomClass roomClass = classes[random.nextInt(classes.length)];
+            List<Room.BedType> beds = system.allowedBedTypes(roomClass);
+            LocalDate checkIn = today.plusDays(random.nextInt(nights));
+            if (pick < 5) {
+                Reservation reservation = system.bookStay("Stress", "Worker" + worker, 1 + random.nextInt(3), roomClass,
+                    beds.get(random.nextInt(beds.size())), checkIn);
+                if (reservation != null) {
+                    mine.add(reservation);
+                    booked[worker]++;
+                }
+            } else if (pick < 6) {
+                List<GuestRequest> group = new ArrayList<>();
+                for (int g = 2 + random.nextInt(3); g > 0; g--) {
+                    group.add(new GuestRequest("Group", "Worker" + worker, 1 + random.nextInt(3), beds.get(random.nextInt(beds.size()))));
+                }
+                List<Reservation> reservations = system.bookGroup(group, roomClass, checkIn, random.nextBoolean());
+                mine.addAll(reservations);
+                booked[worker] += reservations.size();
+            } else if (!mine.isEmpty()) {
+                int at = random.nextInt(mine.size());
+                Reservation reservation = mine.get(at);
+                mine.set(at, mine.get(mine.size() - 1));
+                mine.remove(mine.size() - 1);
+                Reservation removed = system.cancelReservation(reservation.getRoom().getRoomNumber(), reservation.getCheckIn());
+                if (removed != reservation) {
+                    failures.add("room " + reservation.getRoom().getRoomNumber() + " from " + reservation.getCheckIn() + " was "
+                        + (removed == null ? "lost" : "replaced by another stay") + " before it was cancelled");
+                } else {
+                    cancelled[worker]++;
+                }
+            }
+        }
+    }
+
+    // The live reservations are exactly the ones the threads booked and did not cancel, and no two share a room-night
+    private static void checkReservations(HotelManagementSystem system, List<Reservation> expected, List<String> failures) {
+        Set<Long> expectedIds = new HashSet<>();
+        expected.forEach(reservation -> expectedIds.add(reservation.getId()));
+        Set<Long> liveIds = new HashSet<>();
+        Map<Long, Reservation> byRoomNight = new HashMap<>();
+        for (Reservation reservation : system.currentReservations()) {
+            liveIds.add(reservation.getId());
+            if (!expectedIds.contains(reservation.getId())) {
+                failures.add("reservation " + reservation.getId() + " is live but was cancelled or never handed out");
+            }
+            int roomNumber = reservation.getRoom().getRoomNumber();
+            for (LocalDate night = reservation.getCheckIn(); night.isBefore(reservation.getCheckOut()); night = night.plusDays(1)) {
+                Reservation other = byRoomNight.put(((long) roomNumber << 32) | night.toEpochDay(), reservation);
+                if (other != null) {
+                    failures.add("room " + roomNumber + " holds reservations " + other.getId() + " and " + reservation.getId() + " on " + night);
+                }
+            }
+        }
+        for (Reservation reservation : expected) {
+            if (!liveIds.contains(reservation.getId())) {
+                failures.add("reservation " + reservation.getId() + " was booked and never cancelled but is not live");
+            }
+        }
+    }
+
+    // Every night's booked count in the calendar matches the live stays of the class on that night, and the free count
+    // makes up the rest of the class
+    private static void checkCalendar(HotelManagementSystem system, LocalDate today, int nights, List<String> failures) {
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            int[] staying = new int[nights];
+            for (Reservation reservation : system.currentReservations()) {
+                if (reservation.getRoom().getRoomClass() != roomClass) {
+                    continue;
+                }
+                for (LocalDate night = reservation.getCheckIn(); night.isBefore(reservation.getCheckOut()); night = night.plusDays(1)) {
+                    long offset = night.toEpochDay() - today.toEpochDay();
+                    if (offset >= 0 && offset < nights) {
+                        staying[(int) offset]++;
+                    }
+                }
+            }
+            LocalDate emptyNight = today.plusDays(nights + 30);
+            int rooms = system.countAvailableRooms(roomClass, emptyNight, emptyNight.plusDays(1));
+            for (int n = 0; n < nights; n++) {
+                LocalDate night = today.plusDays(n);
+                int taken = system.bookedRooms(roomClass, night);
+                int free = system.countAvailableRooms(roomClass, night, night.plusDays(1));
+                if (taken != staying[n] || taken + free != rooms) {
+                    failures.add(roomClass + " on " + night + ": calendar has " + taken + " taken and " + free + " free of " + rooms
+                        + " rooms, reservations have " + staying[n] + " staying");
+                }
+            }
+        }
+    }
+
+    // The running reservation counts and income of each class match the live stays
+    private static void checkTotals(HotelManagementSystem system, List<String> failures) {
+        for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+            long count = 0;
+            long income = 0;
+            for (Reservation reservation : system.currentReservations()) {
+                if (reservation.getRoom().getRoomClass() == roomClass) {
+                    count++;
+                    income += reservation.getRevenue();
+                }
+            }
+            if (count != system.reservationCount(roomClass) || income != system.income(roomClass)) {
+                failures.add(roomClass + " totals: " + system.reservationCount(roomClass) + " reservations, " + system.income(roomClass)
+                    + " income; live stays: " + count + " reservations, " + income + " income");
+            }
+        }
+    }
+
+    // Replaying the journal written during the run gives back exactly the live stays
+    private static void checkJournal(HotelManagementSystem system, Path dir, List<String> failures) throws IOException {
+        Map<Long, String> replayed = new HashMap<>();
+        ReservationJournal.replay(dir, new ReservationJournal.Replay() {
+            @Override
+            public void book(int roomNumber, String firstName, String lastName, int lengthOfStay, Room.BedType bedType, int rate, LocalDate checkIn) {
+                if (replayed.put(key(roomNumber, checkIn), firstName + " " + lastName) != null) {
+                    failures.add("journal books room " + roomNumber + " from " + checkIn + " twice");
+                }
+            }
+
+            @Override
+            public void cancel(int roomNumber, LocalDate checkIn, LocalDate on) {
+                if (replayed.remove(key(roomNumber, checkIn)) == null) {
+                    failures.add("journal cancels room " + roomNumber + " from " + checkIn + " without a booking");
+                }
+            }
+
+            @Override
+            public void checkOut(int roomNumber, LocalDate checkIn, LocalDate on) {
+                cancel(roomNumber, checkIn, on);
+            }
+        });
+        int live = 0;
+        for (Reservation reservation : system.currentReservations()) {
+            live++;
+            Guest guest = reservation.getGuest();
+            String name = replayed.get(key(reservation.getRoom().getRoomNumber(), reservation.getCheckIn()));
+            if (!(guest.getFirstName() + " " + guest.getLastName()).equals(name)) {
+                failures.add("journal has " + name + " for room " + reservation.getRoom().getRoomNumber() + " from " + reservation.getCheckIn()
+                    + " but " + guest.getFirstName() + " " + guest.getLastName() + " is booked");
+            }
+        }
+        if (replayed.size() != live) {
+            failures.add("journal replays " + replayed.size() + " stays, " + live + " are live");
+        }
+    }
+
+    private static long key(int roomNumber, LocalDate checkIn) {
+        return ((long) roomNumber << 32) | checkIn.toEpochDay();
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+// Fixture for the JMH benchmarks in src/jmh/java (run with mvn -P jmh package, see README): builds hotels of a given
+// size, occupancy tonight and number of stays booked ahead, and names the booking, search, cancellation and reporting
+// operations measured on them. Each operation returns what it computed, so the benchmark can hand it to a Blackhole.
+// Also builds the hotels for BookingApiLoadTest and BookingStressTest; none of the three ships in the system's jar
+public class HotelBenchmark {
+    private static final int NAMES = 1000;
+    private static final int[] REPORT_COLUMNS = {15};
+
+    // Builds a hotel with the given occupancy and stays booked ahead and returns its operations; the entry point for the
+    // JMH benchmarks, which can only reach the default package reflectively, so it is public to need no setAccessible
+    public static Map<String, Supplier<Object>> operations(int roomCount, double occupancy, int reservations) {
+        return operations(buildHotel(roomCount, occupancy, reservations));
+    }
+
+    static HotelManagementSystem buildHotel(int roomCount, double occupancy) {
+        return buildHotel(roomCount, occupancy, 0);
+    }
+
+    // Builds a hotel of the given size (the same class mix as the default layout) with the given share of rooms booked
+    // tonight, then up to the given number of further stays of 1 to 3 nights starting over the next 300 nights; stays
+    // that find no free room are left out
+    static HotelManagementSystem buildHotel(int roomCount, double occupancy, int reservations) {
+        RoomStore store = RoomStore.allocate(roomCount);
+        int standard = (int) (roomCount * 250L / 530);
+        int deluxe = (int) (roomCount * 250L / 530);
+        for (int i = 1; i <= roomCount; i++) {
+            Room.RoomClass roomClass = i <= standard ? Room.RoomClass.STANDARD
+                : i <= standard + deluxe ? Room.RoomClass.DELUXE : Room.RoomClass.SUPERIOR;
+            store.add(i, roomClass, roomClass == Room.RoomClass.STANDARD ? 1000 : roomClass == Room.RoomClass.DELUXE ? 1200 : 1800);
+        }
+        HotelManagementSystem system = new HotelManagementSystem();
+        system.initializeRooms(store);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Random random = new Random(42);
+            long toBook = Math.round(roomCount * occupancy);
+            Room.RoomClass[] classes = {Room.RoomClass.STANDARD, Room.RoomClass.DELUXE, Room.RoomClass.SUPERIOR};
+            int[] perClass = {standard, deluxe, roomCount - standard - deluxe};
+            for (int c = 0; c < classes.length; c++) {
+                long classBookings = Math.round(perClass[c] * occupancy);
+                for (long i = 0; i < classBookings && toBook > 0; i++, toBook--) {
+                    system.reserveRoom("Guest", name(random.nextInt(NAMES)), 1 + random.nextInt(7), classes[c], system.allowedBedTypes(classes[c]).get(0));
+                }
+            }
+            LocalDate today = LocalDate.now();
+            for (int i = 0; i < reservations; i++) {
+                Room.RoomClass roomClass = classes[random.nextInt(classes.length)];
+                system.bookStay("Guest", name(random.nextInt(NAMES)), 1 + random.nextInt(3), roomClass,
+                    system.allowedBedTypes(roomClass).get(0), today.plusDays(1 + random.nextInt(300)));
+            }
+        } finally {
+            System.setOut(console);
+        }
+        return system;
+    }
+
+    // The operations by name. Menu reports are measured writing the same rows to a discarded channel where the rows can
+    // be written anywhere; room details only prints, so the benchmark discards standard output
+    static Map<String, Supplier<Object>> operations(HotelManagementSystem system) {
+        Random random = new Random(7);
+        LocalDate today = LocalDate.now();
+        Map<String, Supplier<Object>> operations = new LinkedHashMap<>();
+        operations.put("bookAndCancel", () -> {
+            Reservation reservation = system.bookStay("Bench", "Mark", 1 + random.nextInt(3), Room.RoomClass.STANDARD,
+                Room.BedType.TWIN, today.plusDays(random.nextInt(300)));
+            return reservation == null ? null : system.cancelReservation(reservation.getRoom().getRoomNumber(), reservation.getCheckIn());
+        });
+        List<GuestRequest> group = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            group.add(new GuestRequest("Group", "Member" + i, 1 + i % 3, Room.BedType.QUEEN_SIZE));
+        }
+        operations.put("groupBookAndCancel", () -> {
+            List<Reservation> booked = system.bookGroup(group, Room.RoomClass.DELUXE, today.plusDays(random.nextInt(300)), true);
+            for (Reservation reservation : booked) {
+                system.cancelReservation(reservation.getRoom().getRoomNumber(), reservation.getCheckIn());
+            }
+            return booked;
+        });
+        operations.put("quote7Nights", () -> system.quoteNightlyRates(Room.RoomClass.STANDARD, Room.BedType.DOUBLE, today.plusDays(random.nextInt(300)), 7));
+        operations.put("groupAvailability", () -> system.checkGroupRoomAvailability(10, Room.RoomClass.SUPERIOR, today, today.plusDays(3)));
+        operations.put("searchHit", () -> system.findReservationsByLastName(name(random.nextInt(NAMES))));
+        operations.put("searchPrefix", () -> system.findReservationsByLastName("Name00" + random.nextInt(10) + "*"));
+        operations.put("searchMiss", () -> system.searchGuests("Nobody" + random.nextInt(NAMES), 5));
+        operations.put("totalIncome", () -> {
+            long income = 0;
+            for (Room.RoomClass roomClass : Room.RoomClass.values()) {
+                income += system.income(roomClass);
+            }
+            return income;
+        });
+        operations.put("revenueAnalytics30Nights", () -> system.revenueAnalytics(today, today.plusDays(30)));
+        operations.put("roomDetails", () -> {
+            system.displayRoomDetails(Room.RoomClass.DELUXE);
+            return null;
+        });
+        operations.put("availableRoomsReport", () -> report(report -> system.writeAvailableRooms(report)));
+        operations.put("allReservationsReport", () -> report(report -> system.writeReservations(report, system.currentReservations())));
+        operations.put("alphabeticalReport", () -> report(report -> system.writeReservations(report, system.alphabeticalReservations())));
+        return operations;
+    }
+
+    private interface Report {
+        void write(ReportWriter report) throws IOException;
+    }
+
+    // Writes the report to a channel that discards it and returns the writer, whose buffer the rows went through
+    private static ReportWriter report(Report rows) {
+        ReportWriter report = ReportWriter.channel(Channels.newChannel(OutputStream.nullOutputStream()), REPORT_COLUMNS);
+        try {
+            rows.write(report);
+            report.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return report;
+    }
+
+    static String name(int n) {
+        return String.format("Name%04d", n);
+    }
+}